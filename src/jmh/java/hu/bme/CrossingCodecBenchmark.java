@@ -0,0 +1,68 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CrossingCodecBenchmark {
+
+    @Param({ "1", "8", "64" })
+    private int laneCount;
+
+    private Crossing crossing;
+    private byte[] encodedJson;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        final String[] laneIds = new String[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            laneIds[i] = String.format("lane-%02d", i);
+        }
+        crossing = new Crossing("crossing-000123", laneIds, CrossingState.FREE_TO_CROSS, false, 1652000000L);
+        encodedJson = crossing.toJSONString().getBytes(UTF_8);
+        encoded = crossing.toBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return crossing.toJSONString().getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public Crossing decodeJson() {
+        return Crossing.fromJSONString(new String(encodedJson, UTF_8));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return crossing.toBytes();
+    }
+
+    @Benchmark
+    public Crossing decode() {
+        return Crossing.fromBytes(encoded);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordCodecBenchmark {
+
+    private Lane lane;
+    private Request request;
+    private RequestPrivateData privateData;
+    private byte[] encodedLaneJson;
+    private byte[] encodedRequestJson;
+    private byte[] encodedPrivateDataJson;
+    private byte[] encodedLane;
+    private byte[] encodedRequest;
+    private byte[] encodedPrivateData;
+
+    @Setup
+    public void setup() {
+        lane = new Lane("lane-03", "crossing-000123", 4, 2, false);
+        request = new Request("-4962768465676381896", "crossing-000123", "lane-03", RequesterRole.CAR, true, true);
+        privateData = new RequestPrivateData("-4962768465676381896", "lane-03", "crossing-000123",
+                "x509::CN=vehicle-0042, OU=client::CN=VehicleOwnerOrg CA");
+        encodedLaneJson = lane.toJSONString().getBytes(UTF_8);
+        encodedRequestJson = request.toJSONString().getBytes(UTF_8);
+        encodedPrivateDataJson = privateData.toJSONString().getBytes(UTF_8);
+        encodedLane = lane.toBytes();
+        encodedRequest = request.toBytes();
+        encodedPrivateData = privateData.toBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeLaneJson() {
+        return lane.toJSONString().getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public Lane decodeLaneJson() {
+        return Lane.fromJSONString(new String(encodedLaneJson, UTF_8));
+    }
+
+    @Benchmark
+    public byte[] encodeRequestJson() {
+        return request.toJSONString().getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public Request decodeRequestJson() {
+        return Request.fromJSONString(new String(encodedRequestJson, UTF_8));
+    }
+
+    @Benchmark
+    public byte[] encodeRequestPrivateDataJson() {
+        return privateData.toJSONString().getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public RequestPrivateData decodeRequestPrivateDataJson() {
+        return RequestPrivateData.fromJSONString(new String(encodedPrivateDataJson, UTF_8));
+    }
+
+    @Benchmark
+    public byte[] encodeLane() {
+        return lane.toBytes();
+    }
+
+    @Benchmark
+    public Lane decodeLane() {
+        return Lane.fromBytes(encodedLane);
+    }
+
+    @Benchmark
+    public byte[] encodeRequest() {
+        return request.toBytes();
+    }
+
+    @Benchmark
+    public Request decodeRequest() {
+        return Request.fromBytes(encodedRequest);
+    }
+
+    @Benchmark
+    public byte[] encodeRequestPrivateData() {
+        return privateData.toBytes();
+    }
+
+    @Benchmark
+    public RequestPrivateData decodeRequestPrivateData() {
+        return RequestPrivateData.fromBytes(encodedPrivateData);
+    }
+}
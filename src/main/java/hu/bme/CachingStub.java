@@ -0,0 +1,381 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hyperledger.fabric.protos.peer.ChaincodeEventPackage.ChaincodeEvent;
+import org.hyperledger.fabric.protos.peer.ChaincodeShim.QueryResponseMetadata;
+import org.hyperledger.fabric.protos.peer.ProposalPackage.SignedProposal;
+import org.hyperledger.fabric.shim.Chaincode.Response;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyModification;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
+
+/**
+ * Transaction scoped {@link ChaincodeStub} that remembers every world state value it has read or written, so repeated
+ * reads of the same key are served from memory instead of going to the peer again. Writes are buffered and sent to the
+ * peer once per key by {@link #flush()}.
+ */
+public class CachingStub implements ChaincodeStub {
+
+    private static final byte[] ABSENT = new byte[0];
+
+    private final ChaincodeStub delegate;
+    private final Map<String, byte[]> cache = new HashMap<>();
+    private final Map<String, byte[]> pendingWrites = new LinkedHashMap<>();
+    private int stateReads;
+    private int peerReads;
+    private int stateWrites;
+    private int stateDeletes;
+    private int peerWrites;
+    private long bytesRead;
+    private long bytesWritten;
+
+    public CachingStub(final ChaincodeStub delegate) {
+        this.delegate = delegate;
+    }
+
+    public ChaincodeStub getDelegate() {
+        return delegate;
+    }
+
+    public int getStateReads() {
+        return stateReads;
+    }
+
+    public int getPeerReads() {
+        return peerReads;
+    }
+
+    public int getStateWrites() {
+        return stateWrites;
+    }
+
+    public int getStateDeletes() {
+        return stateDeletes;
+    }
+
+    public int getPeerWrites() {
+        return peerWrites;
+    }
+
+    /**
+     * Bytes of the values fetched from the peer by getState and by the range and partial composite key queries, counted
+     * as the query results are iterated. Query results are not cached.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Bytes of the values sent to the peer by {@link #flush()}.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void flush() {
+        pendingWrites.forEach((key, value) -> {
+            peerWrites++;
+            if (value == ABSENT) {
+                delegate.delState(key);
+            } else {
+                bytesWritten += value.length;
+                delegate.putState(key, value);
+            }
+        });
+        pendingWrites.clear();
+    }
+
+    private QueryResultsIterator<KeyValue> counted(final QueryResultsIterator<KeyValue> results) {
+        return new QueryResultsIterator<KeyValue>() {
+            @Override
+            public Iterator<KeyValue> iterator() {
+                return counted(results.iterator());
+            }
+
+            @Override
+            public void close() throws Exception {
+                results.close();
+            }
+        };
+    }
+
+    private QueryResultsIteratorWithMetadata<KeyValue> countedPage(
+            final QueryResultsIteratorWithMetadata<KeyValue> results) {
+        return new QueryResultsIteratorWithMetadata<KeyValue>() {
+            @Override
+            public Iterator<KeyValue> iterator() {
+                return counted(results.iterator());
+            }
+
+            @Override
+            public QueryResponseMetadata getMetadata() {
+                return results.getMetadata();
+            }
+
+            @Override
+            public void close() throws Exception {
+                results.close();
+            }
+        };
+    }
+
+    private Iterator<KeyValue> counted(final Iterator<KeyValue> entries) {
+        return new Iterator<KeyValue>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public KeyValue next() {
+                final KeyValue entry = entries.next();
+                bytesRead += entry.getValue() == null ? 0 : entry.getValue().length;
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    public byte[] getState(final String key) {
+        stateReads++;
+        byte[] value = cache.get(key);
+        if (value == null) {
+            peerReads++;
+            value = delegate.getState(key);
+            bytesRead += value == null ? 0 : value.length;
+            cache.put(key, value == null ? ABSENT : value);
+        }
+        return value;
+    }
+
+    @Override
+    public void putState(final String key, final byte[] value) {
+        stateWrites++;
+        pendingWrites.put(key, value);
+        cache.put(key, value);
+    }
+
+    @Override
+    public void delState(final String key) {
+        stateWrites++;
+        stateDeletes++;
+        pendingWrites.put(key, ABSENT);
+        cache.put(key, ABSENT);
+    }
+
+    @Override
+    public List<byte[]> getArgs() {
+        return delegate.getArgs();
+    }
+
+    @Override
+    public List<String> getStringArgs() {
+        return delegate.getStringArgs();
+    }
+
+    @Override
+    public String getFunction() {
+        return delegate.getFunction();
+    }
+
+    @Override
+    public List<String> getParameters() {
+        return delegate.getParameters();
+    }
+
+    @Override
+    public String getTxId() {
+        return delegate.getTxId();
+    }
+
+    @Override
+    public String getChannelId() {
+        return delegate.getChannelId();
+    }
+
+    @Override
+    public Response invokeChaincode(final String chaincodeName, final List<byte[]> args, final String channel) {
+        return delegate.invokeChaincode(chaincodeName, args, channel);
+    }
+
+    @Override
+    public byte[] getStateValidationParameter(final String key) {
+        return delegate.getStateValidationParameter(key);
+    }
+
+    @Override
+    public void setStateValidationParameter(final String key, final byte[] value) {
+        delegate.setStateValidationParameter(key, value);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getStateByRange(final String startKey, final String endKey) {
+        return counted(delegate.getStateByRange(startKey, endKey));
+    }
+
+    @Override
+    public QueryResultsIteratorWithMetadata<KeyValue> getStateByRangeWithPagination(final String startKey,
+            final String endKey, final int pageSize, final String bookmark) {
+        return countedPage(delegate.getStateByRangeWithPagination(startKey, endKey, pageSize, bookmark));
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final String compositeKey) {
+        return counted(delegate.getStateByPartialCompositeKey(compositeKey));
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final String objectType,
+            final String... attributes) {
+        return counted(delegate.getStateByPartialCompositeKey(objectType, attributes));
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final CompositeKey compositeKey) {
+        return counted(delegate.getStateByPartialCompositeKey(compositeKey));
+    }
+
+    @Override
+    public QueryResultsIteratorWithMetadata<KeyValue> getStateByPartialCompositeKeyWithPagination(
+            final CompositeKey compositeKey, final int pageSize, final String bookmark) {
+        return countedPage(delegate.getStateByPartialCompositeKeyWithPagination(compositeKey, pageSize, bookmark));
+    }
+
+    @Override
+    public CompositeKey createCompositeKey(final String objectType, final String... attributes) {
+        return delegate.createCompositeKey(objectType, attributes);
+    }
+
+    @Override
+    public CompositeKey splitCompositeKey(final String compositeKey) {
+        return delegate.splitCompositeKey(compositeKey);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getQueryResult(final String query) {
+        return delegate.getQueryResult(query);
+    }
+
+    @Override
+    public QueryResultsIteratorWithMetadata<KeyValue> getQueryResultWithPagination(final String query,
+            final int pageSize, final String bookmark) {
+        return delegate.getQueryResultWithPagination(query, pageSize, bookmark);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyModification> getHistoryForKey(final String key) {
+        return delegate.getHistoryForKey(key);
+    }
+
+    @Override
+    public byte[] getPrivateData(final String collection, final String key) {
+        return delegate.getPrivateData(collection, key);
+    }
+
+    @Override
+    public byte[] getPrivateDataHash(final String collection, final String key) {
+        return delegate.getPrivateDataHash(collection, key);
+    }
+
+    @Override
+    public byte[] getPrivateDataValidationParameter(final String collection, final String key) {
+        return delegate.getPrivateDataValidationParameter(collection, key);
+    }
+
+    @Override
+    public void putPrivateData(final String collection, final String key, final byte[] value) {
+        delegate.putPrivateData(collection, key, value);
+    }
+
+    @Override
+    public void setPrivateDataValidationParameter(final String collection, final String key, final byte[] value) {
+        delegate.setPrivateDataValidationParameter(collection, key, value);
+    }
+
+    @Override
+    public void delPrivateData(final String collection, final String key) {
+        delegate.delPrivateData(collection, key);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataByRange(final String collection, final String startKey,
+            final String endKey) {
+        return delegate.getPrivateDataByRange(collection, startKey, endKey);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection,
+            final String compositeKey) {
+        return delegate.getPrivateDataByPartialCompositeKey(collection, compositeKey);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection,
+            final CompositeKey compositeKey) {
+        return delegate.getPrivateDataByPartialCompositeKey(collection, compositeKey);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection,
+            final String objectType, final String... attributes) {
+        return delegate.getPrivateDataByPartialCompositeKey(collection, objectType, attributes);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataQueryResult(final String collection, final String query) {
+        return delegate.getPrivateDataQueryResult(collection, query);
+    }
+
+    @Override
+    public void setEvent(final String name, final byte[] payload) {
+        delegate.setEvent(name, payload);
+    }
+
+    @Override
+    public ChaincodeEvent getEvent() {
+        return delegate.getEvent();
+    }
+
+    @Override
+    public SignedProposal getSignedProposal() {
+        return delegate.getSignedProposal();
+    }
+
+    @Override
+    public Instant getTxTimestamp() {
+        return delegate.getTxTimestamp();
+    }
+
+    @Override
+    public byte[] getCreator() {
+        return delegate.getCreator();
+    }
+
+    @Override
+    public Map<String, byte[]> getTransient() {
+        return delegate.getTransient();
+    }
+
+    @Override
+    public byte[] getBinding() {
+        return delegate.getBinding();
+    }
+
+    @Override
+    public String getMspId() {
+        return delegate.getMspId();
+    }
+}
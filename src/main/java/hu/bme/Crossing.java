@@ -4,12 +4,13 @@
 
 package hu.bme;
 
-import java.util.ArrayList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.util.Arrays;
-import java.util.List;
 
 import org.hyperledger.fabric.contract.annotation.DataType;
 import org.hyperledger.fabric.contract.annotation.Property;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 @DataType()
@@ -30,7 +31,17 @@ public class Crossing {
     @Property()
     private long validUntil;
 
+    @Property()
+    private int validityDuration;
+
+    @Property()
+    private int maxLeaseDuration;
+
+    @Property()
+    private LaneSelection laneSelection;
+
     public static final String TYPE = "CROSSING";
+    public static final int DEFAULT = 0;
 
     public Crossing(String id, String[] laneIds, CrossingState state, boolean priorityLock, long validUntil) {
         this.id = id;
@@ -48,13 +59,60 @@ public class Crossing {
         JSONObject jsonObject = new JSONObject(json);
         String id = jsonObject.getString("id");
         CrossingState crossingState = jsonObject.getEnum(CrossingState.class, "state");
-        List<Object> laneIdObjetList = jsonObject.getJSONArray("laneIds").toList();
+        JSONArray laneIdArray = jsonObject.getJSONArray("laneIds");
         boolean priorityLock = jsonObject.getBoolean("priorityLock");
         long validUntil = jsonObject.getLong("validUntil");
-        ArrayList<String> laneIdList = new ArrayList<>();
-        laneIdList.addAll((List<String>) (Object) laneIdObjetList);
-        String[] laneIds = laneIdList.stream().toArray(String[]::new);
-        return new Crossing(id, laneIds, crossingState, priorityLock, validUntil);
+        String[] laneIds = new String[laneIdArray.length()];
+        for (int i = 0; i < laneIds.length; i++) {
+            laneIds[i] = laneIdArray.getString(i);
+        }
+        Crossing crossing = new Crossing(id, laneIds, crossingState, priorityLock, validUntil);
+        crossing.setValidityDuration(jsonObject.optInt("validityDuration", DEFAULT));
+        crossing.setMaxLeaseDuration(jsonObject.optInt("maxLeaseDuration", DEFAULT));
+        crossing.setLaneSelection(jsonObject.optEnum(LaneSelection.class, "laneSelection"));
+        return crossing;
+    }
+
+    public byte[] toBytes() {
+        StateWriter writer = new StateWriter(32 + laneIds.length * 8);
+        writer.writeString(id).writeInt(laneIds.length);
+        for (String laneId : laneIds) {
+            writer.writeString(laneId);
+        }
+        return writer.writeByte(state.code()).writeBoolean(priorityLock).writeLong(validUntil)
+                .writeInt(validityDuration).writeInt(maxLeaseDuration)
+                .writeByte(laneSelection == null ? LaneSelection.NO_CODE : laneSelection.code()).toByteArray();
+    }
+
+    public static Crossing fromBytes(byte[] bytes) {
+        if (StateReader.isLegacyJson(bytes)) {
+            return fromJSONString(new String(bytes, UTF_8));
+        }
+        StateReader reader = new StateReader(bytes);
+        String id = reader.readString();
+        String[] laneIds = new String[reader.readInt()];
+        for (int i = 0; i < laneIds.length; i++) {
+            laneIds[i] = reader.readString();
+        }
+        CrossingState crossingState = CrossingState.fromCode(reader.readByte());
+        boolean priorityLock = reader.readBoolean();
+        long validUntil = reader.readLong();
+        Crossing crossing = new Crossing(id, laneIds, crossingState, priorityLock, validUntil);
+        crossing.setValidityDuration(reader.readInt());
+        crossing.setMaxLeaseDuration(reader.readInt());
+        int laneSelection = reader.readByte();
+        crossing.setLaneSelection(laneSelection == LaneSelection.NO_CODE ? null : LaneSelection.fromCode(laneSelection));
+        return crossing;
+    }
+
+    /**
+     * Copies the configuration of another record of the crossing, so rewriting the crossing keeps it.
+     */
+    public Crossing withConfigOf(Crossing other) {
+        this.validityDuration = other.validityDuration;
+        this.maxLeaseDuration = other.maxLeaseDuration;
+        this.laneSelection = other.laneSelection;
+        return this;
     }
 
     public String getId() {
@@ -97,6 +155,39 @@ public class Crossing {
         this.validUntil = validUntil;
     }
 
+    /**
+     * Seconds a FREE_TO_CROSS state stays valid after a renewal, or DEFAULT for the contract wide duration.
+     */
+    public int getValidityDuration() {
+        return validityDuration;
+    }
+
+    public void setValidityDuration(int validityDuration) {
+        this.validityDuration = validityDuration;
+    }
+
+    /**
+     * Seconds a car permission is leased for, or DEFAULT for the contract wide duration.
+     */
+    public int getMaxLeaseDuration() {
+        return maxLeaseDuration;
+    }
+
+    public void setMaxLeaseDuration(int maxLeaseDuration) {
+        this.maxLeaseDuration = maxLeaseDuration;
+    }
+
+    /**
+     * The lane selection policy of car grants, or null for the policy the contract was created with.
+     */
+    public LaneSelection getLaneSelection() {
+        return laneSelection;
+    }
+
+    public void setLaneSelection(LaneSelection laneSelection) {
+        this.laneSelection = laneSelection;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -106,6 +197,9 @@ public class Crossing {
         result = prime * result + (priorityLock ? 1231 : 1237);
         result = prime * result + ((state == null) ? 0 : state.hashCode());
         result = prime * result + (int) (validUntil ^ (validUntil >>> 32));
+        result = prime * result + validityDuration;
+        result = prime * result + maxLeaseDuration;
+        result = prime * result + ((laneSelection == null) ? 0 : laneSelection.hashCode());
         return result;
     }
 
@@ -131,6 +225,12 @@ public class Crossing {
             return false;
         if (validUntil != other.validUntil)
             return false;
+        if (validityDuration != other.validityDuration)
+            return false;
+        if (maxLeaseDuration != other.maxLeaseDuration)
+            return false;
+        if (laneSelection != other.laneSelection)
+            return false;
         return true;
     }
 
@@ -0,0 +1,32 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+
+public class CrossingContext extends Context {
+
+    private final CachingStub cachingStub;
+    private long startNanos;
+
+    public CrossingContext(final ChaincodeStub stub) {
+        super(stub);
+        this.cachingStub = new CachingStub(stub);
+        this.stub = cachingStub;
+    }
+
+    public CachingStub getCachingStub() {
+        return cachingStub;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public void setStartNanos(final long startNanos) {
+        this.startNanos = startNanos;
+    }
+}
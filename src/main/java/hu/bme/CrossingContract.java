@@ -9,7 +9,17 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import org.hyperledger.fabric.Logger;
 import org.hyperledger.fabric.contract.Context;
@@ -21,6 +31,10 @@ import org.hyperledger.fabric.contract.annotation.Info;
 import org.hyperledger.fabric.contract.annotation.License;
 import org.hyperledger.fabric.contract.annotation.Transaction;
 import org.hyperledger.fabric.shim.ChaincodeException;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
 
 @Contract(name = "CrossingContract", info = @Info(title = "Crossing contract",
 description = "Chaincode to manage the crossing of autonomous vechicles and trains through unguarded level crossings",
@@ -30,11 +44,59 @@ contact = @Contact(email = "", name = "railway-crossing", url = "")))
 @Default
 public class CrossingContract implements ContractInterface {
     private static final int CROSSING_VALIDITY_DURATION_S = 60;
+    private static final int CAR_LEASE_DURATION_S = 300;
+    private static final int MAX_TRAIN_WINDOW_S = 900;
+    private static final int MAX_VALIDITY_DURATION_S = 86400;
+    private static final int MAX_LEASE_DURATION_S = 3600;
+    private static final int MAX_BATCH_SIZE = 50;
+    private static final int MAX_MIGRATION_CHUNK = 100;
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final int MAX_RENEWAL_BATCH_SIZE = 500;
+    private static final long METRICS_DUMP_INTERVAL_NS = TimeUnit.MINUTES.toNanos(5);
     private static final Logger log = Logger.getLogger(CrossingContract.class);
     private static final String RAILWAY_ORG_MSP = "RailwayOrgMSP";
     private static final String VEHICLE_OWNER_MSP = "VehicleOwnerOrgMSP";
 
+    private final TransactionMetrics metrics = new TransactionMetrics(METRICS_DUMP_INTERVAL_NS);
+    private final LaneSelection laneSelection;
+
     public CrossingContract() {
+        this(LaneSelection.RANDOM_PROBE);
+    }
+
+    public CrossingContract(final LaneSelection laneSelection) {
+        this.laneSelection = laneSelection;
+    }
+
+    @Override
+    public Context createContext(final ChaincodeStub stub) {
+        return new CrossingContext(stub);
+    }
+
+    @Override
+    public void beforeTransaction(final Context ctx) {
+        if (ctx instanceof CrossingContext) {
+            metrics.started((CrossingContext) ctx);
+        }
+    }
+
+    @Override
+    public void afterTransaction(final Context ctx, final Object result) {
+        if (ctx instanceof CrossingContext) {
+            ((CrossingContext) ctx).getCachingStub().flush();
+            if (metrics.finished((CrossingContext) ctx)) {
+                log.info("Transaction metrics: " + metrics.toJSON());
+            }
+        }
+    }
+
+    /**
+     * Latency, world state traffic and failure histograms per transaction function, as JSON. They are kept in memory
+     * by the chaincode process, so they describe the peer that evaluates this call since its chaincode started.
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public String getMetrics(final Context ctx) {
+        return metrics.toJSON().toString();
     }
 
     @Transaction(intent = Transaction.TYPE.EVALUATE)
@@ -48,38 +110,155 @@ public class CrossingContract implements ContractInterface {
     public Crossing createCrossing(final Context ctx, final String crossingId, final String[] laneIds,
             final int laneCapacity) {
         assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        assertKeyableCrossingId(crossingId);
         assertCrossingExists(ctx, crossingId, false);
         assertRailwayAdmin(ctx);
         final Crossing asset = new Crossing(crossingId, laneIds, CrossingState.FREE_TO_CROSS, false,
                 ctx.getStub().getTxTimestamp().getEpochSecond()+CROSSING_VALIDITY_DURATION_S);
         createLanes(ctx, laneIds, crossingId, laneCapacity);
         final String compKey = createCompKey(ctx, Crossing.TYPE, crossingId);
-        ctx.getStub().putState(compKey, asset.toJSONString().getBytes(UTF_8));
+        ctx.getStub().putState(compKey, asset.toBytes());
         return asset;
     }
 
+    /**
+     * Reads a crossing with the state a car would see: LOCKED while cars hold its lanes, or while a train window is
+     * open or starts before a car lease granted now would run out.
+     */
     @Transaction(intent = Transaction.TYPE.EVALUATE)
     public Crossing readCrossing(final Context ctx, final String crossingId) {
-        assertCrossingExists(ctx, crossingId, true);
-        String compKey = createCompKey(ctx, Crossing.TYPE, crossingId);
-        return Crossing.fromJSONString(new String(ctx.getStub().getState(compKey), UTF_8));
+        final Crossing crossing = getCrossing(ctx, crossingId);
+        if (crossing.getState() == CrossingState.FREE_TO_CROSS && (trainWindowAhead(ctx, crossing) != null
+                || !lanesEmpty(ctx, crossing, getLanes(ctx, crossing)))) {
+            crossing.setState(CrossingState.LOCKED);
+        }
+        return crossing;
+    }
+
+    /**
+     * Reads a crossing with all of its lanes in one call. The lanes are loaded with one range scan and their occupancy
+     * slots with another, instead of one readLane call per lane. The state is derived like in readCrossing, and no
+     * capacity is free while a train window denies cars.
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public CrossingView readCrossingView(final Context ctx, final String crossingId) {
+        return crossingView(ctx, getCrossing(ctx, crossingId));
+    }
+
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public CrossingView[] readCrossingViews(final Context ctx, final String[] crossingIds) {
+        if (crossingIds.length > MAX_BATCH_SIZE) {
+            throw new ChaincodeException("At most " + MAX_BATCH_SIZE + " crossings can be read at once");
+        }
+        final CrossingView[] views = new CrossingView[crossingIds.length];
+        for (int i = 0; i < crossingIds.length; i++) {
+            views[i] = crossingView(ctx, getCrossing(ctx, crossingIds[i]));
+        }
+        return views;
+    }
+
+    /**
+     * Lists the crossings in key order with their stored state; cars on the lanes are not reflected, readCrossing
+     * derives that for a single crossing.
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public CrossingPage listCrossings(final Context ctx, final int pageSize, final String bookmark) {
+        assertPageSize(pageSize);
+        final List<Crossing> crossings = new ArrayList<>(pageSize);
+        final String nextBookmark;
+        try (QueryResultsIteratorWithMetadata<KeyValue> page = ctx.getStub()
+                .getStateByPartialCompositeKeyWithPagination(ctx.getStub().createCompositeKey(Crossing.TYPE), pageSize,
+                        bookmark)) {
+            for (final KeyValue record : page) {
+                crossings.add(clearCarLock(Crossing.fromBytes(record.getValue())));
+            }
+            nextBookmark = page.getMetadata().getBookmark();
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not list the crossings", e);
+        }
+        return new CrossingPage(crossings.toArray(new Crossing[0]), nextBookmark);
+    }
+
+    /**
+     * Lists the requests recorded at a crossing in request id order. Requests recorded before the crossing indexes
+     * existed are not listed. With activeOnly the active request index is paged, so the cost does not grow with the
+     * history of the crossing, and permissions whose lease has run out are left out, so a page can hold fewer than
+     * pageSize requests.
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public RequestPage listRequests(final Context ctx, final String crossingId, final boolean activeOnly,
+            final int pageSize, final String bookmark) {
+        assertPageSize(pageSize);
+        final List<Request> requests = new ArrayList<>(pageSize);
+        final String nextBookmark;
+        try (QueryResultsIteratorWithMetadata<KeyValue> page = ctx.getStub()
+                .getStateByPartialCompositeKeyWithPagination(
+                        ctx.getStub().createCompositeKey(
+                                activeOnly ? Request.ACTIVE_INDEX_TYPE : Request.CROSSING_INDEX_TYPE, crossingId),
+                        pageSize, bookmark)) {
+            final long now = ctx.getStub().getTxTimestamp().getEpochSecond();
+            for (final KeyValue entry : page) {
+                final String requestId = ctx.getStub().splitCompositeKey(entry.getKey()).getAttributes().get(1);
+                final String laneId;
+                if (activeOnly) {
+                    final StateReader reader = new StateReader(entry.getValue());
+                    laneId = reader.readString();
+                    if (Request.isLeaseExpired(reader.readLong(), now)) {
+                        continue;
+                    }
+                } else {
+                    laneId = new String(entry.getValue(), UTF_8);
+                }
+                requests.add(Request.fromBytes(
+                        ctx.getStub().getState(createCompKey(ctx, Request.TYPE, requestId, laneId, crossingId))));
+            }
+            nextBookmark = page.getMetadata().getBookmark();
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not list the requests of crossing " + crossingId, e);
+        }
+        return new RequestPage(requests.toArray(new Request[0]), nextBookmark);
+    }
+
+    /**
+     * Counts the permissions held at the crossing. Car permissions whose lease has run out are not counted, even if
+     * the vehicle never released them.
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public int countActiveRequests(final Context ctx, final String crossingId) {
+        final long now = ctx.getStub().getTxTimestamp().getEpochSecond();
+        int active = 0;
+        try (QueryResultsIterator<KeyValue> entries = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Request.ACTIVE_INDEX_TYPE, crossingId))) {
+            for (final KeyValue entry : entries) {
+                final StateReader reader = new StateReader(entry.getValue());
+                reader.readString();
+                if (!Request.isLeaseExpired(reader.readLong(), now)) {
+                    active++;
+                }
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not count the active requests of crossing " + crossingId, e);
+        }
+        return active;
     }
 
     @Transaction(intent = Transaction.TYPE.SUBMIT)
     public void deleteCrossing(final Context ctx, final String crossingId) {
         assertCallingOrg(ctx, RAILWAY_ORG_MSP);
         assertRailwayAdmin(ctx);
-        assertCrossingExists(ctx, crossingId, true);
-        Crossing crossing = readCrossing(ctx, crossingId);
-        Arrays.stream(crossing.getLaneIds()).forEach((laneId -> deleteLane(ctx, laneId, crossingId)));
+        Crossing crossing = getCrossing(ctx, crossingId);
+        Arrays.stream(crossing.getLaneIds()).forEach(laneId -> {
+            assertLaneExists(ctx, laneId, crossingId, true);
+            deleteOccupiedSlots(ctx, laneId, crossingId);
+            deleteLaneRecord(ctx, laneId, crossingId);
+        });
         String compKey = createCompKey(ctx, Crossing.TYPE, crossingId);
         ctx.getStub().delState(compKey);
     }
 
     @Transaction(intent = Transaction.TYPE.EVALUATE)
     public boolean laneExists(final Context ctx, final String laneId, final String crossingId) {
-        final String compKey = createCompKey(ctx, Lane.TYPE, laneId, crossingId);
-        final byte[] buffer = ctx.getStub().getState(compKey);
+        final byte[] buffer = getLaneState(ctx, laneId, crossingId);
         return (buffer != null && buffer.length > 0);
     }
 
@@ -89,15 +268,14 @@ public class CrossingContract implements ContractInterface {
         assertRailwayAdmin(ctx);
         assertCrossingExists(ctx, crossingId, true);
         assertLaneExists(ctx, laneId, crossingId, false);
-        final Crossing crossing = readCrossing(ctx, crossingId);
+        final Crossing crossing = getCrossing(ctx, crossingId);
         final Lane lane = new Lane(laneId, crossingId, capacity, 0, false);
         final String[] laneIds = Arrays.copyOf(crossing.getLaneIds(), crossing.getLaneIds().length + 1);
         laneIds[laneIds.length - 1] = laneId;
 
-        updateCrossing(ctx, crossingId, laneIds, crossing.getState().name(), crossing.isPriorityLock(),
-                calcValidity(ctx));
-        String compKey = createCompKey(ctx, Lane.TYPE, laneId, crossingId);
-        ctx.getStub().putState(compKey, lane.toJSONString().getBytes(UTF_8));
+        updateCrossing(ctx, crossing, laneIds, crossing.getState().name(), crossing.isPriorityLock(),
+                calcValidity(ctx, crossing));
+        putLane(ctx, lane);
         return lane;
     }
 
@@ -105,9 +283,38 @@ public class CrossingContract implements ContractInterface {
     @Transaction(intent = Transaction.TYPE.EVALUATE)
     public Lane readLane(final Context ctx, final String laneId, final String crossingId) {
         assertCrossingExists(ctx, crossingId, true);
-        assertLaneExists(ctx, laneId, crossingId, true);
-        final String compKey = createCompKey(ctx, Lane.TYPE, laneId, crossingId);
-        return Lane.fromJSONString(new String(ctx.getStub().getState(compKey), UTF_8));
+        final Lane lane = getLane(ctx, laneId, crossingId);
+        lane.setOccupied(lane.getOccupied() + countOccupiedSlots(ctx, laneId, crossingId));
+        return lane;
+    }
+
+    /**
+     * Moves up to maxLanes lanes from their legacy (laneId, crossingId) keys to the keys ordered by crossing. Moved
+     * keys are deleted, so calling it until it returns 0 migrates every lane in bounded transactions.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public int migrateLanes(final Context ctx, final int maxLanes) {
+        assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        assertRailwayAdmin(ctx);
+        if (maxLanes < 1 || maxLanes > MAX_MIGRATION_CHUNK) {
+            throw new ChaincodeException("A migration must move between 1 and " + MAX_MIGRATION_CHUNK + " lanes");
+        }
+        int migrated = 0;
+        try (QueryResultsIterator<KeyValue> legacyLanes = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Lane.TYPE))) {
+            final Iterator<KeyValue> legacyLane = legacyLanes.iterator();
+            while (migrated < maxLanes && legacyLane.hasNext()) {
+                final KeyValue record = legacyLane.next();
+                final Lane lane = Lane.fromBytes(record.getValue());
+                ctx.getStub().putState(laneKey(ctx, lane.getId(), lane.getCrossingId()), record.getValue());
+                ctx.getStub().delState(record.getKey());
+                migrated++;
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not migrate the lanes", e);
+        }
+        log.info("Migrated " + migrated + " lanes to the keys ordered by crossing");
+        return migrated;
     }
 
     @Transaction(intent = Transaction.TYPE.SUBMIT)
@@ -116,163 +323,867 @@ public class CrossingContract implements ContractInterface {
         assertRailwayAdmin(ctx);
         assertCrossingExists(ctx, crossingId, true);
         assertLaneExists(ctx, laneId, crossingId, true);
-        final Crossing crossing = readCrossing(ctx, crossingId);
-        final String compKey = createCompKey(ctx, Lane.TYPE, laneId, crossingId);
+        final Crossing crossing = getCrossing(ctx, crossingId);
         String[] remainingLanes = Arrays.stream(crossing.getLaneIds()).filter((t -> !t.equals(laneId)))
                 .toArray(String[]::new);
-        updateCrossing(ctx, crossingId, remainingLanes, crossing.getState().name(), crossing.isPriorityLock(),crossing.getValidUntil());
-        ctx.getStub().delState(compKey);
+        updateCrossing(ctx, crossing, remainingLanes, crossing.getState().name(), crossing.isPriorityLock(),crossing.getValidUntil());
+        deleteOccupiedSlots(ctx, laneId, crossingId);
+        deleteLaneRecord(ctx, laneId, crossingId);
     }
 
     @Transaction(intent = Transaction.TYPE.SUBMIT)
     public Request requestTrainCrossing(final Context ctx, final String crossingId) {
         assertCallingOrg(ctx, RAILWAY_ORG_MSP);
-        assertCrossingExists(ctx, crossingId, true);
-        Crossing crossing = readCrossing(ctx, crossingId);
+        final List<CrossingEvent> events = new ArrayList<>(1);
+        final Request request = lockForTrain(ctx, crossingId, getRequestId(ctx), events);
+        events.get(0).emit(ctx);
+        return request;
+    }
+
+    /**
+     * Locks every crossing of a train route in one transaction, in crossing id order, and records the corridor so
+     * releaseTrainCorridor can free all of them at once. Returns the train request of each crossing in route order;
+     * the corridor id is the part of the request ids before the colon.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public Request[] requestTrainCorridor(final Context ctx, final String[] crossingIds) {
+        assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        if (crossingIds.length < 1 || crossingIds.length > MAX_BATCH_SIZE) {
+            throw new ChaincodeException("A corridor must hold between 1 and " + MAX_BATCH_SIZE + " crossings");
+        }
+        if (new HashSet<>(Arrays.asList(crossingIds)).size() != crossingIds.length) {
+            throw new ChaincodeException("A corridor can only pass a crossing once");
+        }
+        final String corridorId = getRequestId(ctx);
+        final String[] requestIds = new String[crossingIds.length];
+        final Map<String, Integer> routeIndex = new TreeMap<>();
+        for (int i = 0; i < crossingIds.length; i++) {
+            requestIds[i] = corridorId + ":" + i;
+            routeIndex.put(crossingIds[i], i);
+        }
 
-        updateCrossing(ctx, crossingId, crossing.getLaneIds(), CrossingState.LOCKED.name(), true, 0L);
+        final Request[] requests = new Request[crossingIds.length];
+        final List<CrossingEvent> events = new ArrayList<>(crossingIds.length);
+        routeIndex.forEach((crossingId, i) -> requests[i] = lockForTrain(ctx, crossingId, requestIds[i], events));
+        ctx.getStub().putState(createCompKey(ctx, TrainCorridor.TYPE, corridorId),
+                new TrainCorridor(corridorId, crossingIds, requestIds).toBytes());
 
-        String compKey = createCompKey(ctx, Request.TYPE, "" + getRequestId(ctx), "N/A", crossingId);
-        Request request = new Request("" + getRequestId(ctx), crossingId, "N/A", RequesterRole.TRAIN, false,
-                false);
-        recordClientIdentity(ctx, "" + getRequestId(ctx), "N/A", crossingId,ctx.getClientIdentity().getId());
+        final boolean granted = Arrays.stream(requests).allMatch(Request::isGranted);
+        CrossingEvent.emitCorridor(ctx, granted ? CrossingEvent.GRANTED : CrossingEvent.DENIED, corridorId, events);
+        log.info("Train corridor " + corridorId + " locked " + crossingIds.length + " crossings, granted: " + granted);
+        return requests;
+    }
 
-        Arrays.stream(crossing.getLaneIds()).forEach(laneId -> lockLane(ctx, laneId, crossingId, true));
+    /**
+     * Reserves the crossing for a train from start until end, in epoch seconds, instead of locking it now. Cars are not
+     * granted permissions whose lease would run into the window, so the window is granted unless a car lease already
+     * does. A denied window holds nothing and the train can ask for a later one.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public Request requestTrainWindow(final Context ctx, final String crossingId, final long start, final long end) {
+        assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        if (start < ctx.getStub().getTxTimestamp().getEpochSecond() || end <= start
+                || end - start > MAX_TRAIN_WINDOW_S) {
+            throw new ChaincodeException(
+                    "A train window must not start in the past and can last at most " + MAX_TRAIN_WINDOW_S + " seconds");
+        }
+        assertKeyableCrossingId(crossingId);
+        final Crossing crossing = getCrossing(ctx, crossingId);
+        final String requestId = getRequestId(ctx);
+        final Request request = new Request(requestId, crossingId, "N/A", RequesterRole.TRAIN, false, false);
+        recordClientIdentity(ctx, requestId, "N/A", crossingId, ctx.getClientIdentity().getId());
+
+        final boolean granted = latestCarLease(ctx, crossing) < start;
+        final TrainWindow window = new TrainWindow(requestId, crossingId, start, end);
+        if (granted) {
+            request.setActive(true);
+            request.setGranted(true);
+            request.setLeaseExpiry(end);
+            ctx.getStub().putState(window.getKey(), window.toBytes());
+        }
+        // every window request stays indexed, also when denied or released, so it is told apart from a train
+        // crossing request
+        ctx.getStub().putState(createCompKey(ctx, TrainWindow.REQUEST_INDEX_TYPE, crossingId, requestId),
+                window.getKey().getBytes(UTF_8));
+        ctx.getStub().putState(createCompKey(ctx, Request.TYPE, requestId, "N/A", crossingId), request.toBytes());
+        indexRequest(ctx, request);
+        new CrossingEvent(granted ? CrossingEvent.GRANTED : CrossingEvent.DENIED, crossing).request(request).emit(ctx);
+        return request;
+    }
 
-        if (crossing.getState() != CrossingState.FREE_TO_CROSS ||
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public void releaseTrainWindow(final Context ctx, final String requestId, final String crossingId) {
+        assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        final Crossing crossing = getCrossing(ctx, crossingId);
+        assertReleaserIdentity(ctx, requestId, crossingId, "N/A");
+
+        final String indexKey = createCompKey(ctx, TrainWindow.REQUEST_INDEX_TYPE, crossingId, requestId);
+        final byte[] windowKey = ctx.getStub().getState(indexKey);
+        if (windowKey == null || windowKey.length == 0) {
+            throw new ChaincodeException("Request " + requestId + " is not a train window of crossing " + crossingId);
+        }
+
+        final String compKey = createCompKey(ctx, Request.TYPE, requestId, "N/A", crossingId);
+        final Request request = Request.fromBytes(ctx.getStub().getState(compKey));
+        request.setActive(false);
+        ctx.getStub().delState(activeRequestKey(ctx, crossingId, requestId));
+        ctx.getStub().delState(new String(windowKey, UTF_8));
+        ctx.getStub().putState(compKey, request.toBytes());
+        new CrossingEvent(CrossingEvent.RELEASED, crossing).request(request).emit(ctx);
+    }
+
+    /**
+     * Sets the priority lock of the crossing and its lanes for a train. The request is granted if the crossing was free
+     * to cross, still valid and no car held a lane; otherwise the train waits for the crossing to clear.
+     */
+    private Request lockForTrain(final Context ctx, final String crossingId, final String requestId,
+            final List<CrossingEvent> events) {
+        Crossing crossing = getCrossing(ctx, crossingId);
+        final Map<String, Lane> lanes = getLanes(ctx, crossing);
+        final Map<String, Integer> slots = countOccupiedSlots(ctx, crossingId);
+        final boolean lanesEmpty = slots.isEmpty() && lanes.values().stream().allMatch(lane -> lane.getOccupied() == 0);
+
+        final Crossing locked = updateCrossing(ctx, crossing, crossing.getLaneIds(), CrossingState.LOCKED.name(),
+                true, 0L);
+
+        String compKey = createCompKey(ctx, Request.TYPE, requestId, "N/A", crossingId);
+        Request request = new Request(requestId, crossingId, "N/A", RequesterRole.TRAIN, false, false);
+        recordClientIdentity(ctx, requestId, "N/A", crossingId,ctx.getClientIdentity().getId());
+
+        lanes.values().forEach(lane -> {
+            lane.setPriorityLock(true);
+            putLane(ctx, lane);
+        });
+
+        if (crossing.getState() != CrossingState.FREE_TO_CROSS || !lanesEmpty ||
                 crossing.getValidUntil() < ctx.getStub().getTxTimestamp().getEpochSecond()) {
 
-            ctx.getStub().putState(compKey, request.toJSONString().getBytes(UTF_8));
+            ctx.getStub().putState(compKey, request.toBytes());
+            indexRequest(ctx, request);
+            events.add(new CrossingEvent(CrossingEvent.DENIED, locked).occupancy(lanes.values(), slots)
+                    .request(request));
             return request;
         }
 
         request.setActive(true);
         request.setGranted(true);
-        ctx.getStub().putState(compKey, request.toJSONString().getBytes(UTF_8));
+        ctx.getStub().putState(compKey, request.toBytes());
+        indexRequest(ctx, request);
+        events.add(new CrossingEvent(CrossingEvent.GRANTED, locked).occupancy(lanes.values(), slots)
+                .request(request));
         return request;
     }
 
+    /**
+     * Grants a car a slot on a lane of the crossing. A denied request is queued on the waitlist of the crossing and
+     * granted by serveWaitlist once a slot is released.
+     */
     @Transaction(intent = Transaction.TYPE.SUBMIT)
     public Request requestCarCrossing(final Context ctx, final String crossingId) {
         assertCallingOrg(ctx, VEHICLE_OWNER_MSP);
-        assertCrossingExists(ctx, crossingId, true);
 
-        Crossing crossing = readCrossing(ctx, crossingId);
+        Crossing crossing = getCrossing(ctx, crossingId);
+        final String requestId = getRequestId(ctx);
 
+        Request request = null;
         if (crossing.isPriorityLock()) {
-            log.warning("Crossing request " + getRequestId(ctx) + " denied because of priorityLock");
-            Request request = new Request("" + getRequestId(ctx), crossingId, "N/A", RequesterRole.CAR, false,
-                    false);
-            String compKey = createCompKey(ctx, Request.TYPE, "" + getRequestId(ctx), "N/A",crossingId);
-            recordClientIdentity(ctx, "" + getRequestId(ctx), "N/A", crossingId,ctx.getClientIdentity().getId());
-            ctx.getStub().putState(compKey, request.toJSONString().getBytes(UTF_8));
-            return request;
+            log.warning("Crossing request " + requestId + " denied because of priorityLock");
+        } else if (trainWindowAhead(ctx, crossing) != null) {
+            log.warning("Crossing request " + requestId + " denied because of an upcoming train window");
+        } else {
+            request = claimSlot(ctx, crossing, getLanes(ctx, crossing), requestId,
+                    ctx.getClientIdentity().getId().hashCode(), new Random(requestId.hashCode()), new HashSet<>(),
+                    new HashMap<>());
+            if (request == null) {
+                log.warning("Crossing request " + requestId + " denied because all lanes are full");
+            } else {
+                log.info("Crossing request " + requestId + " successful");
+            }
         }
 
-        String[] freeLanes = Arrays.stream(crossing.getLaneIds())
-                .filter(lane -> readLane(ctx, lane, crossingId).isFree()).toArray(String[]::new);
+        if (request == null) {
+            request = deniedCarRequest(requestId, crossingId);
+            request.setQueued(true);
+            ctx.getStub().putState(createCompKey(ctx, Request.WAITLIST_TYPE, crossingId,
+                    String.format("%019d", ctx.getStub().getTxTimestamp().toEpochMilli()), requestId),
+                    Request.toWaitlistEntry(ctx.getClientIdentity().getId()));
+        }
+        request = recordCarRequest(ctx, request);
+        new CrossingEvent(request.isGranted() ? CrossingEvent.GRANTED : CrossingEvent.DENIED, crossing).request(request)
+                .emit(ctx);
+        return request;
+    }
 
-        if (freeLanes.length == 0) {
-            log.warning("Crossing request " + getRequestId(ctx) + " denied because all lanes are full");
-            Request request = new Request("" + getRequestId(ctx), crossingId, "N/A", RequesterRole.CAR, false,
-                    false);
-            recordClientIdentity(ctx, "" + getRequestId(ctx), "N/A", crossingId,ctx.getClientIdentity().getId());
-            String compKey = createCompKey(ctx, Request.TYPE, "" + getRequestId(ctx), "N/A",crossingId );
-            ctx.getStub().putState(compKey, request.toJSONString().getBytes(UTF_8));
-            return request;
+    /**
+     * Grants a platoon of cars in one transaction. With allOrNothing every request is denied unless all of them fit,
+     * otherwise as many as possible are granted and the rest are denied.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public Request[] requestCarCrossingBatch(final Context ctx, final String crossingId, final int count,
+            final boolean allOrNothing) {
+        assertCallingOrg(ctx, VEHICLE_OWNER_MSP);
+        if (count < 1 || count > MAX_BATCH_SIZE) {
+            throw new ChaincodeException("A batch must request between 1 and " + MAX_BATCH_SIZE + " crossings");
         }
 
-        Random rand = new Random(ctx.getStub().getTxTimestamp().toEpochMilli());
-        int random = rand.nextInt(freeLanes.length);
+        Crossing crossing = getCrossing(ctx, crossingId);
+        final String batchId = getRequestId(ctx);
+        final Request[] requests = new Request[count];
 
-        String laneId = freeLanes[random];
-        lockLane(ctx, laneId, crossingId, false);
-        updateCrossing(ctx, crossingId, crossing.getLaneIds(), CrossingState.LOCKED.name(), false, 0L);
-        Request request = new Request("" + getRequestId(ctx), crossingId, laneId, RequesterRole.CAR, true,
-                true);
-        String compKey = createCompKey(ctx, Request.TYPE, "" + getRequestId(ctx), laneId, crossingId);
-        log.info("Crossing request " + getRequestId(ctx) + " successful");
-        recordClientIdentity(ctx, "" + getRequestId(ctx), laneId, crossingId,ctx.getClientIdentity().getId());
-        ctx.getStub().putState(compKey, request.toJSONString().getBytes(UTF_8));
-        return request;
+        if (!crossing.isPriorityLock() && trainWindowAhead(ctx, crossing) == null) {
+            final Map<String, Lane> lanes = getLanes(ctx, crossing);
+            final Random probe = new Random(batchId.hashCode());
+            final Set<String> claimed = new HashSet<>();
+            final Map<String, Integer> occupied = new HashMap<>();
+            final int clientHash = ctx.getClientIdentity().getId().hashCode();
+            for (int i = 0; i < count; i++) {
+                requests[i] = claimSlot(ctx, crossing, lanes, batchId + ":" + i, clientHash, probe, claimed, occupied);
+                if (requests[i] == null) {
+                    break;
+                }
+            }
+        }
+
+        final boolean complete = requests[count - 1] != null;
+        final List<Request> recorded = new ArrayList<>(count);
+        int granted = 0;
+        for (int i = 0; i < count; i++) {
+            if (requests[i] == null || (allOrNothing && !complete)) {
+                requests[i] = deniedCarRequest(batchId + ":" + i, crossingId);
+            } else {
+                granted++;
+            }
+            recorded.add(recordCarRequest(ctx, requests[i]));
+        }
+        log.info("Crossing batch " + batchId + " granted " + granted + " of " + count + " requests");
+        final CrossingEvent event = new CrossingEvent(granted > 0 ? CrossingEvent.GRANTED : CrossingEvent.DENIED,
+                crossing);
+        recorded.forEach(event::request);
+        event.emit(ctx);
+        return requests;
     }
 
     @Transaction(intent = Transaction.TYPE.SUBMIT)
-    public void releaseTrainPermission(final Context ctx, final long requestId, final String crossingId) {
+    public void releaseTrainPermission(final Context ctx, final String requestId, final String crossingId) {
         assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        final List<CrossingEvent> events = new ArrayList<>(1);
+        releaseTrain(ctx, requestId, crossingId, events);
+        events.get(0).emit(ctx);
+    }
+
+    /**
+     * Releases every crossing of a corridor recorded by requestTrainCorridor, in crossing id order. The caller must be
+     * the identity that requested the corridor, and a corridor can only be released once.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public void releaseTrainCorridor(final Context ctx, final String corridorId) {
+        assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        final String corridorKey = createCompKey(ctx, TrainCorridor.TYPE, corridorId);
+        final byte[] buffer = ctx.getStub().getState(corridorKey);
+        if (buffer == null || buffer.length == 0) {
+            throwAssetDoesntExistException(ctx, corridorId);
+        }
+        final TrainCorridor corridor = TrainCorridor.fromBytes(buffer);
+        final Map<String, String> requestIds = new TreeMap<>();
+        for (int i = 0; i < corridor.getCrossingIds().length; i++) {
+            requestIds.put(corridor.getCrossingIds()[i], corridor.getRequestIds()[i]);
+        }
+
+        final List<CrossingEvent> events = new ArrayList<>(requestIds.size());
+        requestIds.forEach((crossingId, requestId) -> releaseTrain(ctx, requestId, crossingId, events));
+        ctx.getStub().delState(corridorKey);
+        CrossingEvent.emitCorridor(ctx, CrossingEvent.RELEASED, corridorId, events);
+    }
+
+    private void releaseTrain(final Context ctx, final String requestId, final String crossingId,
+            final List<CrossingEvent> events) {
         assertCrossingExists(ctx, crossingId, true);
         assertRequestExists(ctx, requestId, "N/A", crossingId);
         assertReleaserIdentity(ctx, requestId, crossingId, "N/A");
+        final byte[] window = ctx.getStub().getState(
+                createCompKey(ctx, TrainWindow.REQUEST_INDEX_TYPE, crossingId, requestId));
+        if (window != null && window.length > 0) {
+            throw new ChaincodeException("Request " + requestId + " is a train window; release it with releaseTrainWindow");
+        }
 
-        String compKey = createCompKey(ctx, Request.TYPE, "" + requestId, "N/A", crossingId);
-        Request request = Request.fromJSONString(new String(ctx.getStub().getState(compKey), UTF_8));
+        String compKey = createCompKey(ctx, Request.TYPE, requestId, "N/A", crossingId);
+        Request request = Request.fromBytes(ctx.getStub().getState(compKey));
         request.setActive(false);
+        ctx.getStub().delState(activeRequestKey(ctx, crossingId, requestId));
 
-        Crossing crossing = readCrossing(ctx, crossingId);
-        Lane[] lanes = Arrays.stream(crossing.getLaneIds()).map(l -> readLane(ctx, l, crossingId)).toArray(Lane[]::new);
-        Arrays.stream(lanes).forEach(l -> l.setPriorityLock(false));
+        Crossing crossing = getCrossing(ctx, crossingId);
+        final Crossing freed = updateCrossing(ctx, crossing, crossing.getLaneIds(),
+                CrossingState.FREE_TO_CROSS.name(), false, calcValidity(ctx, crossing));
+        final Map<String, Lane> lanes = getLanes(ctx, crossing);
+        lanes.values().forEach(lane -> {
+            lane.setPriorityLock(false);
+            putLane(ctx, lane);
+        });
 
-        Lane[] freeLanes = Arrays.stream(lanes).filter(Lane::isFree).toArray(Lane[]::new);
-        if (freeLanes.length == lanes.length) {
-            updateCrossing(ctx, crossingId, crossing.getLaneIds(), CrossingState.FREE_TO_CROSS.name(), false,
-                    calcValidity(ctx));
+        ctx.getStub().putState(compKey, request.toBytes());
+        final CrossingEvent event = new CrossingEvent(CrossingEvent.RELEASED, freed)
+                .occupancy(lanes.values(), countOccupiedSlots(ctx, crossingId)).request(request);
+        if (trainWindowAhead(ctx, freed) != null) {
+            event.trainWindowAhead();
         }
-        Arrays.stream(lanes).forEach(l -> unLockLane(ctx, l.getId(), crossingId, true));
-
-        ctx.getStub().putState(compKey, request.toJSONString().getBytes(UTF_8));
+        events.add(event);
     }
 
     @Transaction(intent = Transaction.TYPE.SUBMIT)
-    public void releaseCarPermission(final Context ctx, final long requestId, final String crossingId,
+    public void releaseCarPermission(final Context ctx, final String requestId, final String crossingId,
             final String laneId) {
         assertCallingOrg(ctx, VEHICLE_OWNER_MSP);
-        assertCrossingExists(ctx, crossingId, true);
-        assertLaneExists(ctx, laneId, crossingId, true);
-        assertRequestExists(ctx, requestId,laneId,crossingId);
-        assertReleaserIdentity(ctx, requestId, crossingId, laneId);
-
-        String compKey = createCompKey(ctx, Request.TYPE, "" + requestId,laneId,crossingId);
-        Request request = Request.fromJSONString(new String(ctx.getStub().getState(compKey), UTF_8));
-        request.setActive(false);
+        final Crossing crossing = getCrossing(ctx, crossingId);
+        final Map<String, Lane> lanes = getLanes(ctx, crossing);
+        final Map<String, Integer> legacyReleases = new HashMap<>();
+        final CrossingEvent event = new CrossingEvent(CrossingEvent.RELEASED, crossing)
+                .request(releaseCarRequest(ctx, requestId, crossingId, lanes, laneId, legacyReleases));
+        releaseLegacyOccupancies(ctx, lanes, legacyReleases, event);
+        event.emit(ctx);
+    }
 
-        Crossing crossing = readCrossing(ctx, crossingId);
-        Lane[] lanes = Arrays.stream(crossing.getLaneIds()).map(l -> readLane(ctx, l, crossingId)).toArray(Lane[]::new);
-        for (int i = 0; i < lanes.length; i++) {
-            if (lanes[i].getId().equals(laneId)) {
-                lanes[i].setOccupied(lanes[i].getOccupied() - 1);
-                updateLane(ctx, laneId, crossingId, lanes[i].getCapacity(), lanes[i].getOccupied(),
-                        lanes[i].isPriorityLock());
-                break;
-            }
+    /**
+     * Releases the permissions of a platoon. A request that fails the identity check aborts the whole batch, and each
+     * lane record is rewritten at most once.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public void releaseCarPermissionsBatch(final Context ctx, final String crossingId, final String[] requestIds,
+            final String[] laneIds) {
+        assertCallingOrg(ctx, VEHICLE_OWNER_MSP);
+        if (requestIds.length != laneIds.length) {
+            throw new ChaincodeException("Every released request needs its lane");
         }
-
-        Lane[] emptyLanes = Arrays.stream(lanes).filter(lane -> lane.getOccupied()==0).toArray(Lane[]::new);
-        if (emptyLanes.length == lanes.length) {
-            updateCrossing(ctx, crossingId, crossing.getLaneIds(), CrossingState.FREE_TO_CROSS.name(), crossing.isPriorityLock(),
-                    calcValidity(ctx));
+        if (requestIds.length < 1 || requestIds.length > MAX_BATCH_SIZE) {
+            throw new ChaincodeException("A batch must release between 1 and " + MAX_BATCH_SIZE + " permissions");
         }
+        if (new HashSet<>(Arrays.asList(requestIds)).size() != requestIds.length) {
+            throw new ChaincodeException("A request can only be released once per batch");
+        }
+        final Crossing crossing = getCrossing(ctx, crossingId);
+        final Map<String, Lane> lanes = getLanes(ctx, crossing);
+        final Map<String, Integer> legacyReleases = new HashMap<>();
+        final CrossingEvent event = new CrossingEvent(CrossingEvent.RELEASED, crossing);
+        for (int i = 0; i < requestIds.length; i++) {
+            event.request(releaseCarRequest(ctx, requestIds[i], crossingId, lanes, laneIds[i], legacyReleases));
+        }
+        releaseLegacyOccupancies(ctx, lanes, legacyReleases, event);
+        event.emit(ctx);
+    }
 
-        ctx.getStub().putState(compKey, request.toJSONString().getBytes(UTF_8));
+    /**
+     * Grants the queued car requests of the crossing, oldest first, while it has free slots, and returns the granted
+     * requests. Releases do not serve the waitlist themselves: every release at the crossing would then read and
+     * delete the same head of the queue and probe the same slots, so concurrent releases would fail and leave their
+     * slots held. Instead the railway runs an off-chain service that follows the PermissionReleased events and
+     * submits this for the crossing of each release; only this transaction is retried when it conflicts. Without it
+     * queued cars are never granted and are dropped once they have waited longer than a lease.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public Request[] serveWaitlist(final Context ctx, final String crossingId) {
+        assertCallingOrg(ctx, VEHICLE_OWNER_MSP, RAILWAY_ORG_MSP);
+        final Crossing crossing = getCrossing(ctx, crossingId);
+        final CrossingEvent event = new CrossingEvent(CrossingEvent.GRANTED, crossing);
+        final List<Request> granted = promoteWaitlist(ctx, crossing, getLanes(ctx, crossing), event);
+        if (!granted.isEmpty()) {
+            event.emit(ctx);
+        }
+        return granted.toArray(new Request[0]);
     }
 
     @Transaction(intent = Transaction.TYPE.SUBMIT)
     public Crossing renewFreeToCrossValidity(final Context ctx, final String crossingId) {
         assertCallingOrg(ctx, RAILWAY_ORG_MSP);
         assertRailwayAdmin(ctx);
-        assertCrossingExists(ctx, crossingId, true);
         Crossing crossing = readCrossing(ctx, crossingId);
 
         if (!crossing.getState().equals(CrossingState.FREE_TO_CROSS)) {
             throw new ChaincodeException("Crossing must be in FREE_TO_CROSS state for this operation");
         }
 
-        crossing.setValidUntil(calcValidity(ctx));
-        updateCrossing(ctx, crossingId, crossing.getLaneIds(), crossing.getState().name(), crossing.isPriorityLock(),
+        crossing.setValidUntil(calcValidity(ctx, crossing));
+        updateCrossing(ctx, crossing, crossing.getLaneIds(), crossing.getState().name(), crossing.isPriorityLock(),
                 crossing.getValidUntil());
+        new CrossingEvent(CrossingEvent.RENEWED, crossing).emit(ctx);
 
         return crossing;
     }
 
+    /**
+     * Renews the validity of many crossings in one transaction. Crossings that do not exist or that a train holds are
+     * skipped instead of failing the batch. Only the crossing records are read, not their lanes, so car traffic at
+     * the crossings does not invalidate the renewal; a crossing with cars on it is renewed as well.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public ValidityRenewal renewFreeToCrossValidityBatch(final Context ctx, final String[] crossingIds) {
+        assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        assertRailwayAdmin(ctx);
+        if (crossingIds.length < 1 || crossingIds.length > MAX_RENEWAL_BATCH_SIZE) {
+            throw new ChaincodeException(
+                    "A batch must renew between 1 and " + MAX_RENEWAL_BATCH_SIZE + " crossings");
+        }
+
+        final List<Crossing> renewed = new ArrayList<>(crossingIds.length);
+        final List<String> skipped = new ArrayList<>();
+        final List<CrossingEvent> events = new ArrayList<>(crossingIds.length);
+        for (final String crossingId : new LinkedHashSet<>(Arrays.asList(crossingIds))) {
+            final String compKey = createCompKey(ctx, Crossing.TYPE, crossingId);
+            final byte[] buffer = ctx.getStub().getState(compKey);
+            if (buffer == null || buffer.length == 0) {
+                log.warning("Validity of crossing " + crossingId + " not renewed because it does not exist");
+                skipped.add(crossingId);
+                continue;
+            }
+            final Crossing crossing = clearCarLock(Crossing.fromBytes(buffer));
+            if (crossing.getState() != CrossingState.FREE_TO_CROSS) {
+                log.warning("Validity of crossing " + crossingId + " not renewed because of priorityLock");
+                skipped.add(crossingId);
+                continue;
+            }
+            crossing.setValidUntil(calcValidity(ctx, crossing));
+            ctx.getStub().putState(compKey, crossing.toBytes());
+            renewed.add(crossing);
+            events.add(new CrossingEvent(CrossingEvent.RENEWED, crossing));
+        }
+        if (!events.isEmpty()) {
+            CrossingEvent.emitAll(ctx, CrossingEvent.RENEWED, events);
+        }
+
+        return new ValidityRenewal(renewed.toArray(new Crossing[0]), skipped.toArray(new String[0]));
+    }
+
+    /**
+     * Sets how long a renewal keeps the crossing valid, how long its car permissions are leased for, and which lane
+     * selection policy its car grants use. An empty laneSelection keeps the policy of the contract. The configuration
+     * is stored on the crossing record, so transactions read it with the crossing. It applies from the next renewal
+     * and the next grant.
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public Crossing updateCrossingConfig(final Context ctx, final String crossingId, final int validityDuration,
+            final int maxLeaseDuration, final String laneSelection) {
+        assertCallingOrg(ctx, RAILWAY_ORG_MSP);
+        assertRailwayAdmin(ctx);
+        if (validityDuration < 1 || validityDuration > MAX_VALIDITY_DURATION_S) {
+            throw new ChaincodeException(
+                    "The validity duration must be between 1 and " + MAX_VALIDITY_DURATION_S + " seconds");
+        }
+        if (maxLeaseDuration < 1 || maxLeaseDuration > MAX_LEASE_DURATION_S) {
+            throw new ChaincodeException(
+                    "The lease duration must be between 1 and " + MAX_LEASE_DURATION_S + " seconds");
+        }
+        LaneSelection policy = null;
+        if (!laneSelection.isEmpty()) {
+            try {
+                policy = LaneSelection.valueOf(laneSelection);
+            } catch (IllegalArgumentException e) {
+                throw new ChaincodeException("Unknown lane selection policy " + laneSelection, e);
+            }
+        }
+
+        final Crossing crossing = getCrossing(ctx, crossingId);
+        crossing.setValidityDuration(validityDuration);
+        crossing.setMaxLeaseDuration(maxLeaseDuration);
+        crossing.setLaneSelection(policy);
+        ctx.getStub().putState(createCompKey(ctx, Crossing.TYPE, crossingId), crossing.toBytes());
+        return crossing;
+    }
+
+    /**
+     * Reads the crossing as stored, where LOCKED only means a train holds the priority lock. Cars are accounted for on
+     * their lanes; records written when car grants still locked the crossing are read as FREE_TO_CROSS.
+     */
+    private Crossing getCrossing(final Context ctx, final String crossingId) {
+        assertCrossingExists(ctx, crossingId, true);
+        final String compKey = createCompKey(ctx, Crossing.TYPE, crossingId);
+        return clearCarLock(Crossing.fromBytes(ctx.getStub().getState(compKey)));
+    }
+
+    private Crossing clearCarLock(final Crossing crossing) {
+        if (crossing.getState() == CrossingState.LOCKED && !crossing.isPriorityLock()) {
+            crossing.setState(CrossingState.FREE_TO_CROSS);
+        }
+        return crossing;
+    }
+
+    private CrossingView crossingView(final Context ctx, final Crossing crossing) {
+        final Map<String, Lane> lanes = getLanes(ctx, crossing);
+        final Map<String, Integer> slots = countOccupiedSlots(ctx, crossing.getId());
+        int freeCapacity = 0;
+        boolean empty = true;
+        for (final Lane lane : lanes.values()) {
+            lane.setOccupied(lane.getOccupied() + slots.getOrDefault(lane.getId(), 0));
+            empty &= lane.getOccupied() == 0;
+            if (!lane.isPriorityLock()) {
+                freeCapacity += Math.max(0, lane.getCapacity() - lane.getOccupied());
+            }
+        }
+        final boolean windowAhead = trainWindowAhead(ctx, crossing) != null;
+        if (crossing.getState() == CrossingState.FREE_TO_CROSS && (!empty || windowAhead)) {
+            crossing.setState(CrossingState.LOCKED);
+        }
+        return new CrossingView(crossing, lanes.values().toArray(new Lane[0]),
+                crossing.isPriorityLock() || windowAhead ? 0 : freeCapacity);
+    }
+
+    /**
+     * Returns the train window a car lease granted now would run into, or null. Windows last at most
+     * MAX_TRAIN_WINDOW_S, so only windows starting after now - MAX_TRAIN_WINDOW_S can still be open, and the check is
+     * one range read bounded on both ends.
+     */
+    private TrainWindow trainWindowAhead(final Context ctx, final Crossing crossing) {
+        final String crossingId = crossing.getId();
+        final long now = ctx.getStub().getTxTimestamp().getEpochSecond();
+        final long leaseEnd = now + leaseDuration(crossing);
+        try (QueryResultsIterator<KeyValue> windows = ctx.getStub().getStateByRange(
+                TrainWindow.startKey(crossingId, now - MAX_TRAIN_WINDOW_S), TrainWindow.startKey(crossingId, leaseEnd))) {
+            for (final KeyValue record : windows) {
+                final TrainWindow window = TrainWindow.fromBytes(record.getValue());
+                if (window.overlaps(now, leaseEnd)) {
+                    return window;
+                }
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not read the train windows of crossing " + crossingId, e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the epoch second the last car lease on the crossing runs out. Cars counted on the lane record before
+     * leases existed never run out.
+     */
+    private long latestCarLease(final Context ctx, final Crossing crossing) {
+        if (getLanes(ctx, crossing).values().stream().anyMatch(lane -> lane.getOccupied() > 0)) {
+            return SlotLease.NEVER_EXPIRES;
+        }
+        final long now = ctx.getStub().getTxTimestamp().getEpochSecond();
+        long latest = 0L;
+        try (QueryResultsIterator<KeyValue> slots = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Lane.OCCUPANCY_TYPE, crossing.getId()))) {
+            for (final KeyValue slot : slots) {
+                final SlotLease lease = SlotLease.fromBytes(slot.getValue());
+                if (!lease.isExpired(now)) {
+                    latest = Math.max(latest, lease.getExpiresAt());
+                }
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not read the occupancy of crossing " + crossing.getId(), e);
+        }
+        return latest;
+    }
+
+    private boolean lanesEmpty(final Context ctx, final Crossing crossing, final Map<String, Lane> lanes) {
+        return lanes.values().stream().allMatch(lane -> lane.getOccupied() == 0)
+                && !hasOccupiedSlots(ctx, crossing.getId());
+    }
+
+    private Lane getLane(final Context ctx, final String laneId, final String crossingId) {
+        final byte[] buffer = getLaneState(ctx, laneId, crossingId);
+        if (buffer == null || buffer.length == 0) {
+            throwAssetDoesntExistException(ctx, laneId + " " + crossingId);
+        }
+        return Lane.fromBytes(buffer);
+    }
+
+    /**
+     * Loads every lane of the crossing with one range scan, in the order of its lane ids. Lanes that migrateLanes has
+     * not moved yet are read from their legacy key.
+     */
+    private Map<String, Lane> getLanes(final Context ctx, final Crossing crossing) {
+        final Map<String, Lane> stored = new HashMap<>();
+        try (QueryResultsIterator<KeyValue> results = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Lane.CROSSING_LANE_TYPE, crossing.getId()))) {
+            for (final KeyValue result : results) {
+                final Lane lane = Lane.fromBytes(result.getValue());
+                stored.put(lane.getId(), lane);
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not read the lanes of crossing " + crossing.getId(), e);
+        }
+        final Map<String, Lane> lanes = new LinkedHashMap<>();
+        for (final String laneId : crossing.getLaneIds()) {
+            final Lane lane = stored.get(laneId);
+            lanes.put(laneId, lane != null ? lane : getLane(ctx, laneId, crossing.getId()));
+        }
+        return lanes;
+    }
+
+    private byte[] getLaneState(final Context ctx, final String laneId, final String crossingId) {
+        final byte[] buffer = ctx.getStub().getState(laneKey(ctx, laneId, crossingId));
+        if (buffer != null && buffer.length > 0) {
+            return buffer;
+        }
+        return ctx.getStub().getState(legacyLaneKey(ctx, laneId, crossingId));
+    }
+
+    /**
+     * Writes the lane under its key ordered by crossing and blindly deletes its legacy key, so the write does not add
+     * the legacy key to the read set.
+     */
+    private void putLane(final Context ctx, final Lane lane) {
+        ctx.getStub().putState(laneKey(ctx, lane.getId(), lane.getCrossingId()), lane.toBytes());
+        ctx.getStub().delState(legacyLaneKey(ctx, lane.getId(), lane.getCrossingId()));
+    }
+
+    private void deleteLaneRecord(final Context ctx, final String laneId, final String crossingId) {
+        ctx.getStub().delState(laneKey(ctx, laneId, crossingId));
+        ctx.getStub().delState(legacyLaneKey(ctx, laneId, crossingId));
+    }
+
+    private String laneKey(final Context ctx, final String laneId, final String crossingId) {
+        return createCompKey(ctx, Lane.CROSSING_LANE_TYPE, crossingId, laneId);
+    }
+
+    private String legacyLaneKey(final Context ctx, final String laneId, final String crossingId) {
+        return createCompKey(ctx, Lane.TYPE, laneId, crossingId);
+    }
+
+    /**
+     * Cars hold one of the occupancy slot keys of their lane instead of incrementing the lane record, so concurrent
+     * grants only conflict when they probe the same slot. The occupied count stored on the lane is what is left from
+     * before slots existed; those cars take the lowest slot numbers. A slot whose lease has run out is free again, so
+     * a car that never releases its permission stops blocking the lane without a cleanup transaction.
+     */
+    private int findFreeSlot(final Context ctx, final Lane lane, final Random probe, final Set<String> claimed) {
+        final int slots = lane.getCapacity() - lane.getOccupied();
+        if (lane.isPriorityLock() || slots <= 0) {
+            return Request.NO_SLOT;
+        }
+        final long now = ctx.getStub().getTxTimestamp().getEpochSecond();
+        final int offset = probe.nextInt(slots);
+        for (int i = 0; i < slots; i++) {
+            final int slot = lane.getOccupied() + (offset + i) % slots;
+            final String slotKey = slotKey(ctx, lane.getCrossingId(), lane.getId(), slot);
+            if (claimed.contains(slotKey)) {
+                continue;
+            }
+            final byte[] holder = ctx.getStub().getState(slotKey);
+            if (holder == null || holder.length == 0 || SlotLease.fromBytes(holder).isExpired(now)) {
+                return slot;
+            }
+        }
+        return Request.NO_SLOT;
+    }
+
+    /**
+     * Probes the lanes in the order chosen by the lane selection policy and claims the first free slot that is not in
+     * claimed yet. occupied remembers the lanes the policy has counted, including the slots claimed since, so a batch
+     * scans each lane at most once. Returns the granted request, or null if the crossing is full.
+     */
+    private Request claimSlot(final Context ctx, final Crossing crossing, final Map<String, Lane> lanes,
+            final String requestId, final int clientHash, final Random probe, final Set<String> claimed,
+            final Map<String, Integer> occupied) {
+        final String[] laneIds = crossing.getLaneIds();
+        if (laneIds.length == 0) {
+            return null;
+        }
+        final LaneSelection policy = crossing.getLaneSelection() == null ? laneSelection
+                : crossing.getLaneSelection();
+        final Integer[] order = policy.order(laneIds, probe, clientHash,
+                laneId -> occupied.computeIfAbsent(laneId,
+                        id -> lanes.get(id).getOccupied() + countOccupiedSlots(ctx, id, crossing.getId())));
+        for (final int lane : order) {
+            final String laneId = laneIds[lane];
+            final int slot = findFreeSlot(ctx, lanes.get(laneId), probe, claimed);
+            if (slot != Request.NO_SLOT) {
+                claimed.add(slotKey(ctx, crossing.getId(), laneId, slot));
+                occupied.computeIfPresent(laneId, (id, count) -> count + 1);
+                final Request request = new Request(requestId, crossing.getId(), laneId, RequesterRole.CAR, true, true,
+                        slot);
+                request.setLeaseExpiry(ctx.getStub().getTxTimestamp().getEpochSecond() + leaseDuration(crossing));
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Frees the occupancy slot of a car request. Requests granted before slots existed were counted on the lane
+     * record; those are collected in legacyReleases so the caller can update each lane once.
+     */
+    private Request releaseCarRequest(final Context ctx, final String requestId, final String crossingId,
+            final Map<String, Lane> lanes, final String laneId, final Map<String, Integer> legacyReleases) {
+        if (!lanes.containsKey(laneId)) {
+            throwAssetDoesntExistException(ctx, laneId + " " + crossingId);
+        }
+        assertReleaserIdentity(ctx, requestId, crossingId, laneId);
+
+        final String compKey = createCompKey(ctx, Request.TYPE, requestId, laneId, crossingId);
+        final Request request = Request.fromBytes(ctx.getStub().getState(compKey));
+        request.setActive(false);
+        ctx.getStub().delState(activeRequestKey(ctx, crossingId, requestId));
+
+        if (request.getSlot() == Request.NO_SLOT) {
+            legacyReleases.merge(laneId, 1, Integer::sum);
+        } else {
+            final String slotKey = slotKey(ctx, crossingId, laneId, request.getSlot());
+            final byte[] holder = ctx.getStub().getState(slotKey);
+            if (holder != null && holder.length > 0
+                    && SlotLease.fromBytes(holder).getRequestId().equals(request.getId())) {
+                ctx.getStub().delState(slotKey);
+            }
+        }
+
+        ctx.getStub().putState(compKey, request.toBytes());
+        return request;
+    }
+
+    private Request deniedCarRequest(final String requestId, final String crossingId) {
+        return new Request(requestId, crossingId, "N/A", RequesterRole.CAR, false, false);
+    }
+
+    private Request recordCarRequest(final Context ctx, final Request request) {
+        recordClientIdentity(ctx, request.getId(), request.getLaneId(), request.getCrossingId(),
+                ctx.getClientIdentity().getId());
+        return storeCarRequest(ctx, request);
+    }
+
+    private Request storeCarRequest(final Context ctx, final Request request) {
+        if (request.isGranted()) {
+            ctx.getStub().putState(slotKey(ctx, request.getCrossingId(), request.getLaneId(), request.getSlot()),
+                    new SlotLease(request.getId(), request.getLeaseExpiry()).toBytes());
+        }
+        final String compKey = createCompKey(ctx, Request.TYPE, request.getId(), request.getLaneId(),
+                request.getCrossingId());
+        ctx.getStub().putState(compKey, request.toBytes());
+        indexRequest(ctx, request);
+        return request;
+    }
+
+    /**
+     * Serves at most MAX_BATCH_SIZE entries of the waitlist. Requests that have waited longer than a car lease are
+     * dropped instead of granted, as their vehicle has likely moved on. The entries hold what the lane selection needs,
+     * so serving reads no private data: a peer may not have received it yet. A granted request keeps the identity
+     * recorded when it was queued.
+     */
+    private List<Request> promoteWaitlist(final Context ctx, final Crossing crossing, final Map<String, Lane> lanes,
+            final CrossingEvent event) {
+        final List<Request> promoted = new ArrayList<>();
+        if (crossing.isPriorityLock() || trainWindowAhead(ctx, crossing) != null) {
+            return promoted;
+        }
+        final long expired = ctx.getStub().getTxTimestamp().toEpochMilli() - leaseDuration(crossing) * 1000L;
+        final Set<String> claimed = new HashSet<>();
+        final Map<String, Integer> occupied = new HashMap<>();
+        try (QueryResultsIterator<KeyValue> waitlist = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Request.WAITLIST_TYPE, crossing.getId()))) {
+            final Iterator<KeyValue> entries = waitlist.iterator();
+            int served = 0;
+            while (served++ < MAX_BATCH_SIZE && entries.hasNext()) {
+                final KeyValue entry = entries.next();
+                final List<String> attributes = ctx.getStub().splitCompositeKey(entry.getKey()).getAttributes();
+                final String requestId = attributes.get(2);
+                final String queuedKey = createCompKey(ctx, Request.TYPE, requestId, "N/A", crossing.getId());
+                if (Long.parseLong(attributes.get(1)) >= expired) {
+                    final Request granted = claimSlot(ctx, crossing, lanes, requestId,
+                            new StateReader(entry.getValue()).readInt(), new Random(requestId.hashCode()), claimed,
+                            occupied);
+                    if (granted == null) {
+                        break;
+                    }
+                    ctx.getStub().delState(queuedKey);
+                    promoted.add(storeCarRequest(ctx, granted));
+                    event.request(granted);
+                    log.info("Queued crossing request " + requestId + " granted");
+                } else {
+                    final byte[] queued = ctx.getStub().getState(queuedKey);
+                    if (queued != null && queued.length > 0) {
+                        final Request dropped = Request.fromBytes(queued);
+                        dropped.setQueued(false);
+                        ctx.getStub().putState(queuedKey, dropped.toBytes());
+                    }
+                }
+                ctx.getStub().delState(entry.getKey());
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not serve the waitlist of crossing " + crossing.getId(), e);
+        }
+        return promoted;
+    }
+
+    /**
+     * Request keys start with the request id, so each new request is also indexed under its crossing, and under the
+     * active requests of the crossing while it holds a permission. Index entries hold the lane id that completes the
+     * request key; active entries also hold the lease expiry of the request.
+     */
+    private void indexRequest(final Context ctx, final Request request) {
+        ctx.getStub().putState(createCompKey(ctx, Request.CROSSING_INDEX_TYPE, request.getCrossingId(), request.getId()),
+                request.getLaneId().getBytes(UTF_8));
+        if (request.isActive()) {
+            ctx.getStub().putState(activeRequestKey(ctx, request.getCrossingId(), request.getId()),
+                    request.toActiveIndexEntry());
+        }
+    }
+
+    private String activeRequestKey(final Context ctx, final String crossingId, final String requestId) {
+        return createCompKey(ctx, Request.ACTIVE_INDEX_TYPE, crossingId, requestId);
+    }
+
+    private String slotKey(final Context ctx, final String crossingId, final String laneId, final int slot) {
+        return createCompKey(ctx, Lane.OCCUPANCY_TYPE, crossingId, laneId, "" + slot);
+    }
+
+    private int countOccupiedSlots(final Context ctx, final String laneId, final String crossingId) {
+        final long now = ctx.getStub().getTxTimestamp().getEpochSecond();
+        int occupied = 0;
+        try (QueryResultsIterator<KeyValue> slots = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneId))) {
+            for (final KeyValue slot : slots) {
+                if (!SlotLease.fromBytes(slot.getValue()).isExpired(now)) {
+                    occupied++;
+                }
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not read the occupancy of lane " + laneId + " " + crossingId, e);
+        }
+        return occupied;
+    }
+
+    /**
+     * Counts the unexpired occupancy slots of every lane of the crossing with one range scan.
+     */
+    private Map<String, Integer> countOccupiedSlots(final Context ctx, final String crossingId) {
+        final long now = ctx.getStub().getTxTimestamp().getEpochSecond();
+        final Map<String, Integer> occupied = new HashMap<>();
+        try (QueryResultsIterator<KeyValue> slots = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Lane.OCCUPANCY_TYPE, crossingId))) {
+            for (final KeyValue slot : slots) {
+                if (!SlotLease.fromBytes(slot.getValue()).isExpired(now)) {
+                    occupied.merge(ctx.getStub().splitCompositeKey(slot.getKey()).getAttributes().get(1), 1,
+                            Integer::sum);
+                }
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not read the occupancy of crossing " + crossingId, e);
+        }
+        return occupied;
+    }
+
+    private boolean hasOccupiedSlots(final Context ctx, final String crossingId) {
+        final long now = ctx.getStub().getTxTimestamp().getEpochSecond();
+        try (QueryResultsIterator<KeyValue> slots = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Lane.OCCUPANCY_TYPE, crossingId))) {
+            for (final KeyValue slot : slots) {
+                if (!SlotLease.fromBytes(slot.getValue()).isExpired(now)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not read the occupancy of crossing " + crossingId, e);
+        }
+    }
+
+    private void deleteOccupiedSlots(final Context ctx, final String laneId, final String crossingId) {
+        try (QueryResultsIterator<KeyValue> slots = ctx.getStub().getStateByPartialCompositeKey(
+                ctx.getStub().createCompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneId))) {
+            for (final KeyValue slot : slots) {
+                ctx.getStub().delState(slot.getKey());
+            }
+        } catch (Exception e) {
+            throw new ChaincodeException("Could not release the occupancy of lane " + laneId + " " + crossingId, e);
+        }
+    }
+
     private String createCompKey(final Context ctx, final String objectType, final String... idParts) {
         return ctx.getStub().createCompositeKey(objectType.toUpperCase(), idParts).toString();
     }
@@ -283,89 +1194,75 @@ public class CrossingContract implements ContractInterface {
         Arrays.stream(laneIds).forEach(laneId -> {
             final Lane lane = new Lane(laneId, crossingId, capacity, 0, false);
             lanes.add(lane);
-            final String compKey = createCompKey(ctx, Lane.TYPE, laneId, crossingId);
-            ctx.getStub().putState(compKey, lane.toJSONString().getBytes(UTF_8));
+            putLane(ctx, lane);
         });
         return lanes.toArray(new Lane[laneIds.length]);
     }
 
-    private Crossing updateCrossing(final Context ctx, final String crossingId, final String[] laneIds,
+    private Crossing updateCrossing(final Context ctx, final Crossing crossing, final String[] laneIds,
             final String crossingState,
             final boolean priorityLock, final long validUntil) {
+        final String crossingId = crossing.getId();
         assertCrossingExists(ctx, crossingId, true);
         final Crossing asset = new Crossing(crossingId, laneIds, CrossingState.fromString(crossingState), priorityLock,
-                validUntil);
+                validUntil).withConfigOf(crossing);
         final String compKey = createCompKey(ctx, Crossing.TYPE, crossingId);
-        ctx.getStub().putState(compKey, asset.toJSONString().getBytes(UTF_8));
+        ctx.getStub().putState(compKey, asset.toBytes());
         return asset;
     }
 
-    private Lane updateLane(final Context ctx, final String laneId, final String crossingId, final int capacity,
-            final int occupied,
-            final boolean priorityLock) {
-        if (occupied > capacity) {
-            throw new IllegalArgumentException("Capacity can't be a lower value than occupied");
-        }
-        assertCrossingExists(ctx, crossingId, true);
-        assertLaneExists(ctx, laneId, crossingId, true);
-        final Lane asset = new Lane(laneId, crossingId, capacity, occupied, priorityLock);
-        final String compKey = createCompKey(ctx, Lane.TYPE, laneId, crossingId);
-        ctx.getStub().putState(compKey, asset.toJSONString().getBytes(UTF_8));
-        return asset;
+    private void releaseLegacyOccupancies(final Context ctx, final Map<String, Lane> lanes,
+            final Map<String, Integer> legacyReleases, final CrossingEvent event) {
+        final List<Lane> released = new ArrayList<>(legacyReleases.size());
+        legacyReleases.forEach((laneId, count) -> released.add(releaseLegacyOccupancy(ctx, lanes.get(laneId), count)));
+        event.lanes(released);
     }
 
-
-    private Lane lockLane(final Context ctx, final String laneId, final String crossingId, final boolean priorityLock) {
-        assertCrossingExists(ctx, crossingId, true);
-        assertLaneExists(ctx, laneId, crossingId, true);
-        Lane lane = readLane(ctx, laneId, crossingId);
-
-        if (priorityLock) {
-            lane.setPriorityLock(priorityLock);
-        } else if (lane.getCapacity() <= lane.getOccupied()) {
-            throw new ChaincodeException("Lane is already fully occupied");
-        } else {
-            lane.setOccupied(lane.getOccupied() + 1);
-        }
-        final String compKey = createCompKey(ctx, Lane.TYPE, laneId, crossingId);
-        ctx.getStub().putState(compKey, lane.toJSONString().getBytes(UTF_8));
+    private Lane releaseLegacyOccupancy(final Context ctx, final Lane lane, final int released) {
+        lane.setOccupied(Math.max(0, lane.getOccupied() - released));
+        putLane(ctx, lane);
         return lane;
     }
 
-    private Lane unLockLane(final Context ctx, final String laneId, final String crossingId,
-            final boolean priorityLock) {
-        assertCrossingExists(ctx, crossingId, true);
-        assertLaneExists(ctx, laneId, crossingId, true);
-        Lane lane = readLane(ctx, laneId, crossingId);
+    private void throwAssetAlreadyExistsException(final Context ctx, String assetId) {
+        markFailure(ctx, TransactionMetrics.ALREADY_EXISTS);
+        throw new ChaincodeException("The specified asset " + assetId + " already exists");
+    }
 
-        if (priorityLock) {
-            lane.setPriorityLock(false);
-        } else {
-            lane.setOccupied(lane.getOccupied() - 1);
+    private void throwAssetDoesntExistException(final Context ctx, String assetId) {
+        markFailure(ctx, TransactionMetrics.NOT_FOUND);
+        throw new ChaincodeException("The specified asset " + assetId + " doesn't exist");
+    }
+
+    private void assertKeyableCrossingId(final String crossingId) {
+        if (!TrainWindow.isKeyableCrossingId(crossingId)) {
+            throw new ChaincodeException("A crossing id must not contain the character U+0001");
         }
-        String compKey = createCompKey(ctx, Lane.TYPE, laneId, crossingId);
-        ctx.getStub().putState(compKey, lane.toJSONString().getBytes(UTF_8));
-        return lane;
     }
 
-    private void throwAssetAlreadyExistsException(String assetId) {
-        throw new ChaincodeException("The specified asset " + assetId + " already exists");
+    private void markFailure(final Context ctx, final String reason) {
+        if (ctx instanceof CrossingContext) {
+            metrics.failed((CrossingContext) ctx, reason);
+        }
     }
 
-    private void throwAssetDoesntExistException(String assetId) {
-        throw new ChaincodeException("The specified asset " + assetId + " doesn't exist");
+    private long calcValidity(final Context ctx, final Crossing crossing) {
+        final int duration = crossing.getValidityDuration() == Crossing.DEFAULT ? CROSSING_VALIDITY_DURATION_S
+                : crossing.getValidityDuration();
+        return ctx.getStub().getTxTimestamp().getEpochSecond() + duration;
     }
 
-    private long calcValidity(final Context ctx) {
-        return ctx.getStub().getTxTimestamp().getEpochSecond() + CrossingContract.CROSSING_VALIDITY_DURATION_S;
+    private int leaseDuration(final Crossing crossing) {
+        return crossing.getMaxLeaseDuration() == Crossing.DEFAULT ? CAR_LEASE_DURATION_S
+                : crossing.getMaxLeaseDuration();
     }
 
     private void assertCrossingExists(final Context ctx, final String id, boolean shouldExist) {
         final boolean exist = crossingExists(ctx, id);
         if (shouldExist && !exist) {
-            throwAssetDoesntExistException(id);
+            throwAssetDoesntExistException(ctx, id);
         } else if (!shouldExist && exist) {
-            throwAssetAlreadyExistsException(id);
+            throwAssetAlreadyExistsException(ctx, id);
         }
     }
 
@@ -373,69 +1270,92 @@ public class CrossingContract implements ContractInterface {
             boolean shouldExist) {
         final boolean exist = laneExists(ctx, laneId, crossingId);
         if (shouldExist && !exist) {
-            throwAssetDoesntExistException(laneId + " " + crossingId);
+            throwAssetDoesntExistException(ctx, laneId + " " + crossingId);
         } else if (!shouldExist && exist) {
-            throwAssetAlreadyExistsException(laneId + " " + crossingId);
+            throwAssetAlreadyExistsException(ctx, laneId + " " + crossingId);
         }
     }
 
-    private void assertRequestExists(final Context ctx, final long requestId, final String laneId,
+    private void assertRequestExists(final Context ctx, final String requestId, final String laneId,
             final String crossingId) {
-        String compKey = createCompKey(ctx, Request.TYPE, "" + requestId, laneId, crossingId);
+        String compKey = createCompKey(ctx, Request.TYPE, requestId, laneId, crossingId);
         byte[] buffer = ctx.getStub().getState(compKey);
         final boolean exists = (buffer != null && buffer.length > 0);
 
         if (!exists) {
-            throwAssetDoesntExistException(requestId + " " + crossingId + " " + laneId);
+            throwAssetDoesntExistException(ctx, requestId + " " + crossingId + " " + laneId);
+        }
+    }
+
+    private void assertPageSize(final int pageSize) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ChaincodeException("A page must hold between 1 and " + MAX_PAGE_SIZE + " records");
         }
     }
 
-    private void assertCallingOrg(final Context ctx, final String msp) {
-        if (!ctx.getClientIdentity().getMSPID().equals(msp)) {
-            throw new ChaincodeException("Must be part of " + msp + " to perform this operation");
+    private void assertCallingOrg(final Context ctx, final String... msps) {
+        if (!Arrays.asList(msps).contains(ctx.getClientIdentity().getMSPID())) {
+            markFailure(ctx, TransactionMetrics.ACCESS_DENIED);
+            throw new ChaincodeException("Must be part of " + String.join(" or ", msps) + " to perform this operation");
         }
     }
 
+    /**
+     * The requester's identity goes into the REQUEST_PRIVDATA private data collection (see collections_config.json),
+     * so only its hash is part of the public state and the blocks.
+     */
     private void recordClientIdentity(final Context ctx, String requestId, String laneId, String crossingId, String clientId) {
-        String compKey = createCompKey(ctx, RequestPrivateData.COLLECTION_NAME, ""+requestId, laneId, crossingId);
+        String compKey = createCompKey(ctx, RequestPrivateData.COLLECTION_NAME, requestId, laneId, crossingId);
         RequestPrivateData priv = new RequestPrivateData(requestId, laneId, crossingId, clientId);
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new ChaincodeException("Unexpected crypto exception occured");
-        }
-        byte[] hash = digest.digest(priv.toJSONString().getBytes(UTF_8));
-        ctx.getStub().putState(compKey, hash);
+        ctx.getStub().putPrivateData(RequestPrivateData.COLLECTION_NAME, compKey, priv.toBytes());
     }
     
     private void assertRailwayAdmin(Context ctx){
         if(!ctx.getClientIdentity().getId().equals("x509::CN=RailwayOrg Admin, OU=admin::CN=RailwayOrg CA")){
+            markFailure(ctx, TransactionMetrics.ACCESS_DENIED);
             throw new ChaincodeException("Only the RailwayOrg's Admin can perform this operation");
         }
         
     }
 
-    private void assertReleaserIdentity(Context ctx, long requestId, String crossingId, String laneId){
+    private void assertReleaserIdentity(Context ctx, String requestId, String crossingId, String laneId){
         assertRequestExists(ctx, requestId, laneId, crossingId);
         String clientId = ctx.getClientIdentity().getId();
-        String privDataCompKey = ctx.getStub().createCompositeKey(RequestPrivateData.COLLECTION_NAME, requestId+"",laneId,crossingId).toString();
-        byte[] hashedRequest = ctx.getStub().getState(privDataCompKey);
-        RequestPrivateData callerPrivateData = new RequestPrivateData(""+requestId, laneId, crossingId, clientId);
+        String privDataCompKey = ctx.getStub().createCompositeKey(RequestPrivateData.COLLECTION_NAME, requestId,laneId,crossingId).toString();
+        byte[] hashedRequest = ctx.getStub().getPrivateDataHash(RequestPrivateData.COLLECTION_NAME, privDataCompKey);
+        if ((hashedRequest == null || hashedRequest.length == 0) && !laneId.equals("N/A")) {
+            // requests granted from the waitlist keep the identity recorded when they were queued
+            hashedRequest = ctx.getStub().getPrivateDataHash(RequestPrivateData.COLLECTION_NAME,
+                    createCompKey(ctx, RequestPrivateData.COLLECTION_NAME, requestId, "N/A", crossingId));
+            if (hashedRequest != null && hashedRequest.length > 0) {
+                laneId = "N/A";
+            }
+        }
+        if (hashedRequest == null || hashedRequest.length == 0) {
+            // requests recorded before the collection existed kept the hash in the public state
+            hashedRequest = ctx.getStub().getState(privDataCompKey);
+        }
+        RequestPrivateData callerPrivateData = new RequestPrivateData(requestId, laneId, crossingId, clientId);
         MessageDigest digest;
         try {
             digest = MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new ChaincodeException("Unexpected crypto exception occured");
         }
-        byte[] callerPrivateDataHash = digest.digest(callerPrivateData.toJSONString().getBytes(UTF_8));
-        if (!Arrays.equals(hashedRequest, callerPrivateDataHash)) {
+        byte[] callerPrivateDataHash = digest.digest(callerPrivateData.toBytes());
+        if (!Arrays.equals(hashedRequest, callerPrivateDataHash)
+                && !Arrays.equals(hashedRequest, digest.digest(callerPrivateData.toJSONString().getBytes(UTF_8)))) {
+            markFailure(ctx, TransactionMetrics.ACCESS_DENIED);
             throw new ChaincodeException("Caller identity is not authorized to release this permission");
         }
     }
     
-    private long getRequestId(Context ctx){
-        Random rand = new Random(ctx.getStub().getTxTimestamp().getEpochSecond());
-        return rand.nextLong();
+    /**
+     * Request ids are the id of the transaction that created them: Fabric derives it from a fresh nonce and the
+     * submitter, so it is unique on the channel no matter how many requests share a block or a second. Requests of a
+     * batch append their index to it.
+     */
+    private String getRequestId(Context ctx){
+        return ctx.getStub().getTxId();
     }
 }
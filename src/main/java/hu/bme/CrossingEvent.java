@@ -0,0 +1,143 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.hyperledger.fabric.contract.Context;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The chaincode event of a transaction that changes who may cross, so controllers can follow a crossing from block
+ * events instead of polling readCrossing and readLane. Fabric keeps only one event per transaction, so batches report
+ * all of their requests in one payload.
+ *
+ * storedState is the state of the crossing record, which stays FREE_TO_CROSS while cars hold its lanes; only a train
+ * makes it LOCKED. Car grants and releases report the slots they take or free through their requests, and lanes with
+ * the stored record, whose occupied only counts cars granted before occupancy slots existed. A client applies them to
+ * the occupancy it read once with readCrossingView. Counting the slots here would add a range read, and with it a
+ * phantom read conflict with every other car at the crossing, to each car grant and release.
+ *
+ * Train locks and releases count the slots anyway, so their events carry the full occupancy of every lane and the
+ * state readCrossing would report.
+ */
+final class CrossingEvent {
+
+    static final String GRANTED = "CrossingGranted";
+    static final String DENIED = "CrossingDenied";
+    static final String RELEASED = "PermissionReleased";
+    static final String RENEWED = "ValidityRenewed";
+
+    private final String name;
+    private final JSONObject payload = new JSONObject();
+    private final JSONArray lanes = new JSONArray();
+    private final JSONArray requests = new JSONArray();
+
+    CrossingEvent(final String name, final Crossing crossing) {
+        this.name = name;
+        payload.put("crossingId", crossing.getId());
+        payload.put("storedState", crossing.getState().name());
+        payload.put("priorityLock", crossing.isPriorityLock());
+        payload.put("validUntil", crossing.getValidUntil());
+    }
+
+    CrossingEvent lanes(final Collection<Lane> changed) {
+        for (final Lane lane : changed) {
+            lanes.put(new JSONObject().put("id", lane.getId()).put("capacity", lane.getCapacity())
+                    .put("occupied", lane.getOccupied()).put("priorityLock", lane.isPriorityLock()));
+        }
+        return this;
+    }
+
+    /**
+     * Reports every lane with its occupancy, counting the unexpired slots of each lane, and the state readCrossing
+     * would report.
+     */
+    CrossingEvent occupancy(final Collection<Lane> all, final Map<String, Integer> slots) {
+        boolean empty = true;
+        for (final Lane lane : all) {
+            final int occupied = lane.getOccupied() + slots.getOrDefault(lane.getId(), 0);
+            lanes.put(new JSONObject().put("id", lane.getId()).put("capacity", lane.getCapacity())
+                    .put("occupied", occupied).put("priorityLock", lane.isPriorityLock()));
+            empty &= occupied == 0;
+        }
+        final boolean free = empty && CrossingState.FREE_TO_CROSS.name().equals(payload.getString("storedState"));
+        payload.put("state", (free ? CrossingState.FREE_TO_CROSS : CrossingState.LOCKED).name());
+        return this;
+    }
+
+    /**
+     * Reports the crossing LOCKED, as readCrossing does while a train window denies cars.
+     */
+    CrossingEvent trainWindowAhead() {
+        payload.put("state", CrossingState.LOCKED.name());
+        return this;
+    }
+
+    CrossingEvent request(final Request request) {
+        final JSONObject entry = new JSONObject().put("id", request.getId()).put("granted", request.isGranted())
+                .put("active", request.isActive());
+        if (request.getSlot() != Request.NO_SLOT) {
+            entry.put("laneId", request.getLaneId()).put("slot", request.getSlot());
+        }
+        if (request.isQueued()) {
+            entry.put("queued", true);
+        }
+        if (request.getLeaseExpiry() != Request.NO_LEASE && request.isActive()) {
+            entry.put("leaseExpiry", request.getLeaseExpiry());
+        }
+        requests.put(entry);
+        return this;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    JSONObject toJSON() {
+        if (lanes.length() > 0) {
+            payload.put("lanes", lanes);
+        }
+        if (requests.length() > 0) {
+            payload.put("requests", requests);
+        }
+        return payload;
+    }
+
+    byte[] toBytes() {
+        return toJSON().toString().getBytes(UTF_8);
+    }
+
+    void emit(final Context ctx) {
+        ctx.getStub().setEvent(name, toBytes());
+    }
+
+    /**
+     * Emits the events of the crossings of a train corridor as one event, since a transaction can only have one.
+     */
+    static void emitCorridor(final Context ctx, final String name, final String corridorId,
+            final List<CrossingEvent> events) {
+        ctx.getStub().setEvent(name, new JSONObject().put("corridorId", corridorId).put("crossings", toJSON(events))
+                .toString().getBytes(UTF_8));
+    }
+
+    /**
+     * Emits the events of the crossings a batch has changed as one event.
+     */
+    static void emitAll(final Context ctx, final String name, final List<CrossingEvent> events) {
+        ctx.getStub().setEvent(name, new JSONObject().put("crossings", toJSON(events)).toString().getBytes(UTF_8));
+    }
+
+    private static JSONArray toJSON(final List<CrossingEvent> events) {
+        final JSONArray crossings = new JSONArray();
+        events.forEach(event -> crossings.put(event.toJSON()));
+        return crossings;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+import org.json.JSONObject;
+
+/**
+ * One page of a crossing listing. The bookmark continues the listing and is empty after the last page.
+ */
+@DataType()
+public class CrossingPage {
+
+    @Property()
+    private Crossing[] crossings;
+
+    @Property()
+    private String bookmark;
+
+    public CrossingPage(final Crossing[] crossings, final String bookmark) {
+        this.crossings = crossings;
+        this.bookmark = bookmark;
+    }
+
+    public String toJSONString() {
+        return new JSONObject(this).toString();
+    }
+
+    public Crossing[] getCrossings() {
+        return crossings;
+    }
+
+    public void setCrossings(Crossing[] crossings) {
+        this.crossings = crossings;
+    }
+
+    public String getBookmark() {
+        return bookmark;
+    }
+
+    public void setBookmark(String bookmark) {
+        this.bookmark = bookmark;
+    }
+}
@@ -1,7 +1,32 @@
 package hu.bme;
 
+import org.hyperledger.fabric.shim.ChaincodeException;
+
 public enum CrossingState {
-    FREE_TO_CROSS, LOCKED;
+    FREE_TO_CROSS(0), LOCKED(1);
+
+    private final int code;
+
+    CrossingState(final int code) {
+        this.code = code;
+    }
+
+    /**
+     * The byte a state is stored as in the binary state format. Codes are fixed, so reordering the constants does not
+     * change the meaning of stored records.
+     */
+    int code() {
+        return code;
+    }
+
+    static CrossingState fromCode(final int code) {
+        for (final CrossingState state : values()) {
+            if (state.code == code) {
+                return state;
+            }
+        }
+        throw new ChaincodeException("Unknown crossing state code " + code);
+    }
 
     public static CrossingState fromString(String state) {
         if (state.equals(FREE_TO_CROSS.name())) {
@@ -9,4 +34,4 @@ public enum CrossingState {
         }
         return CrossingState.LOCKED;
     }
-}
\ No newline at end of file
+}
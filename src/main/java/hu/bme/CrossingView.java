@@ -0,0 +1,60 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+import org.json.JSONObject;
+
+/**
+ * A crossing as readCrossing returns it, together with its lanes as readLane returns them and the number of cars that
+ * could still be granted.
+ */
+@DataType()
+public class CrossingView {
+
+    @Property()
+    private Crossing crossing;
+
+    @Property()
+    private Lane[] lanes;
+
+    @Property()
+    private int freeCapacity;
+
+    public CrossingView(final Crossing crossing, final Lane[] lanes, final int freeCapacity) {
+        this.crossing = crossing;
+        this.lanes = lanes;
+        this.freeCapacity = freeCapacity;
+    }
+
+    public String toJSONString() {
+        return new JSONObject(this).toString();
+    }
+
+    public Crossing getCrossing() {
+        return crossing;
+    }
+
+    public void setCrossing(Crossing crossing) {
+        this.crossing = crossing;
+    }
+
+    public Lane[] getLanes() {
+        return lanes;
+    }
+
+    public void setLanes(Lane[] lanes) {
+        this.lanes = lanes;
+    }
+
+    public int getFreeCapacity() {
+        return freeCapacity;
+    }
+
+    public void setFreeCapacity(int freeCapacity) {
+        this.freeCapacity = freeCapacity;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Concurrent histogram of non-negative longs with log-linear buckets in the style of HdrHistogram: every power of two
+ * is split into SUB_BUCKETS equal buckets, so a recorded value is off by at most 1/SUB_BUCKETS of itself. Recording is
+ * an index computation and a few atomic increments, without allocation.
+ */
+final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    void record(final long value) {
+        final long recorded = Math.max(0L, value);
+        counts.incrementAndGet(bucketOf(recorded));
+        count.increment();
+        sum.add(recorded);
+        max.accumulate(recorded);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        final long recorded = count.sum();
+        return recorded == 0 ? 0.0 : (double) sum.sum() / recorded;
+    }
+
+    /**
+     * Returns the highest value that falls into the same bucket as the given quantile of the recorded values.
+     */
+    long getValueAtQuantile(final double quantile) {
+        final long total = count.sum();
+        if (total == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(bucket), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    JSONObject toJSON() {
+        return new JSONObject().put("count", getCount()).put("mean", Math.round(getMean()))
+                .put("p50", getValueAtQuantile(0.5)).put("p90", getValueAtQuantile(0.9))
+                .put("p99", getValueAtQuantile(0.99)).put("max", getMax());
+    }
+
+    static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (magnitude + 1) * SUB_BUCKETS + (int) (value >>> magnitude) - SUB_BUCKETS;
+    }
+
+    static long lowestValueOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int magnitude = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << magnitude;
+    }
+
+    static long highestValueOf(final int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValueOf(bucket + 1) - 1;
+    }
+}
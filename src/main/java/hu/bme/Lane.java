@@ -1,5 +1,7 @@
 package hu.bme;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import org.hyperledger.fabric.contract.annotation.DataType;
 import org.hyperledger.fabric.contract.annotation.Property;
 import org.json.JSONObject;
@@ -22,7 +24,10 @@ public class Lane {
     @Property()
     private boolean priorityLock;
 
+    // lanes used to be keyed (laneId, crossingId); CrossingContract.migrateLanes moves them to (crossingId, laneId)
     public static final String TYPE = "LANE";
+    public static final String CROSSING_LANE_TYPE = "CROSSING_LANE";
+    public static final String OCCUPANCY_TYPE = "LANE_OCCUPANCY";
 
     public Lane(String id, String crossingId, int capacity, int occupied, boolean priorityLock) {
         this.id = id;
@@ -51,6 +56,24 @@ public class Lane {
 
     }
 
+    public byte[] toBytes() {
+        return new StateWriter(32).writeString(id).writeString(crossingId).writeInt(capacity).writeInt(occupied)
+                .writeBoolean(priorityLock).toByteArray();
+    }
+
+    public static Lane fromBytes(byte[] bytes) {
+        if (StateReader.isLegacyJson(bytes)) {
+            return fromJSONString(new String(bytes, UTF_8));
+        }
+        StateReader reader = new StateReader(bytes);
+        String id = reader.readString();
+        String crossingId = reader.readString();
+        int capacity = reader.readInt();
+        int occupied = reader.readInt();
+        boolean priorityLock = reader.readBoolean();
+        return new Lane(id, crossingId, capacity, occupied, priorityLock);
+    }
+
     public String getId() {
         return id;
     }
@@ -0,0 +1,114 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+import org.hyperledger.fabric.shim.ChaincodeException;
+
+/**
+ * Orders the lanes of a crossing for a car grant, which then takes a free slot on the first lane that has one. Every
+ * policy only depends on the world state, the request id and the hash of the requester's identity, so all endorsers of
+ * a proposal pick the same lane.
+ *
+ * The policies trade conflicts differently. RANDOM_PROBE and STICKY read no occupancy, so concurrent grants only
+ * collide when they probe the same slot. POWER_OF_TWO counts the slots of two lanes and LEAST_OCCUPIED of every lane;
+ * those range reads make a grant conflict with any concurrent grant on the counted lanes.
+ */
+public enum LaneSelection {
+
+    /** Starts at a lane drawn from the request id. */
+    RANDOM_PROBE(1) {
+        @Override
+        Integer[] order(final String[] laneIds, final Random probe, final int clientHash,
+                final ToIntFunction<String> occupancy) {
+            return rotation(laneIds.length, probe.nextInt(laneIds.length));
+        }
+    },
+
+    /** Starts at a lane drawn from the requester's identity, so a vehicle keeps using the same lane. */
+    STICKY(2) {
+        @Override
+        Integer[] order(final String[] laneIds, final Random probe, final int clientHash,
+                final ToIntFunction<String> occupancy) {
+            return rotation(laneIds.length, Math.floorMod(clientHash, laneIds.length));
+        }
+    },
+
+    /** Tries the lanes from the least occupied one. */
+    LEAST_OCCUPIED(3) {
+        @Override
+        Integer[] order(final String[] laneIds, final Random probe, final int clientHash,
+                final ToIntFunction<String> occupancy) {
+            final Integer[] order = rotation(laneIds.length, probe.nextInt(laneIds.length));
+            final int[] occupied = new int[laneIds.length];
+            for (int i = 0; i < laneIds.length; i++) {
+                occupied[i] = occupancy.applyAsInt(laneIds[i]);
+            }
+            Arrays.sort(order, Comparator.comparingInt(lane -> occupied[lane]));
+            return order;
+        }
+    },
+
+    /** Draws two lanes from the request id and tries the less occupied one first. */
+    POWER_OF_TWO(4) {
+        @Override
+        Integer[] order(final String[] laneIds, final Random probe, final int clientHash,
+                final ToIntFunction<String> occupancy) {
+            final Integer[] order = rotation(laneIds.length, probe.nextInt(laneIds.length));
+            if (laneIds.length > 1) {
+                final int other = 1 + probe.nextInt(laneIds.length - 1);
+                if (occupancy.applyAsInt(laneIds[order[other]]) < occupancy.applyAsInt(laneIds[order[0]])) {
+                    final Integer first = order[0];
+                    order[0] = order[other];
+                    order[other] = first;
+                }
+            }
+            return order;
+        }
+    };
+
+    /** The byte stored for a crossing that uses the default policy of the contract. */
+    static final int NO_CODE = 0;
+
+    private final int code;
+
+    LaneSelection(final int code) {
+        this.code = code;
+    }
+
+    /**
+     * The byte a policy is stored as in the binary state format.
+     */
+    int code() {
+        return code;
+    }
+
+    static LaneSelection fromCode(final int code) {
+        for (final LaneSelection policy : values()) {
+            if (policy.code == code) {
+                return policy;
+            }
+        }
+        throw new ChaincodeException("Unknown lane selection code " + code);
+    }
+
+    /**
+     * Returns the indexes of laneIds in the order the lanes should be tried. clientHash is the hash code of the
+     * requester's identity and occupancy returns the cars on a lane.
+     */
+    abstract Integer[] order(String[] laneIds, Random probe, int clientHash, ToIntFunction<String> occupancy);
+
+    private static Integer[] rotation(final int lanes, final int offset) {
+        final Integer[] order = new Integer[lanes];
+        for (int i = 0; i < lanes; i++) {
+            order[i] = (offset + i) % lanes;
+        }
+        return order;
+    }
+}
@@ -4,6 +4,8 @@
 
 package hu.bme;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import org.hyperledger.fabric.contract.annotation.DataType;
 import org.hyperledger.fabric.contract.annotation.Property;
 import org.json.JSONObject;
@@ -12,6 +14,11 @@ import org.json.JSONObject;
 public class Request {
 
     public static final String TYPE = "REQUEST";
+    public static final String CROSSING_INDEX_TYPE = "CROSSING_REQUEST";
+    public static final String ACTIVE_INDEX_TYPE = "ACTIVE_REQUEST";
+    public static final String WAITLIST_TYPE = "WAITLIST";
+    public static final int NO_SLOT = -1;
+    public static final long NO_LEASE = 0L;
 
     @Property()
     private String id;
@@ -31,14 +38,29 @@ public class Request {
     @Property()
     private boolean active;
 
+    @Property()
+    private int slot;
+
+    @Property()
+    private long leaseExpiry = NO_LEASE;
+
+    @Property()
+    private boolean queued;
+
     public Request(final String id, final String crossingId, final String laneId, final RequesterRole roleOfRequester,
             final boolean granted, final boolean active) {
+        this(id, crossingId, laneId, roleOfRequester, granted, active, NO_SLOT);
+    }
+
+    public Request(final String id, final String crossingId, final String laneId, final RequesterRole roleOfRequester,
+            final boolean granted, final boolean active, final int slot) {
         this.id = id;
         this.crossingId = crossingId;
         this.laneId = laneId;
         this.roleOfRequester = roleOfRequester;
         this.granted = granted;
         this.active = active;
+        this.slot = slot;
     }
 
     public String toJSONString() {
@@ -53,7 +75,35 @@ public class Request {
         final RequesterRole roleOfRequester = jsonObject.getEnum(RequesterRole.class, "roleOfRequester");
         final boolean isGranted = jsonObject.getBoolean("granted");
         final boolean isActive = jsonObject.getBoolean("active");
-        return new Request(id, crossingId, laneId, roleOfRequester, isGranted, isActive);
+        final int slot = jsonObject.optInt("slot", NO_SLOT);
+        final Request request = new Request(id, crossingId, laneId, roleOfRequester, isGranted, isActive, slot);
+        request.setLeaseExpiry(jsonObject.optLong("leaseExpiry", NO_LEASE));
+        request.setQueued(jsonObject.optBoolean("queued"));
+        return request;
+    }
+
+    public byte[] toBytes() {
+        return new StateWriter(48).writeString(id).writeString(crossingId).writeString(laneId)
+                .writeByte(roleOfRequester.code()).writeBoolean(granted).writeBoolean(active).writeInt(slot)
+                .writeLong(leaseExpiry).writeBoolean(queued).toByteArray();
+    }
+
+    public static Request fromBytes(final byte[] bytes) {
+        if (StateReader.isLegacyJson(bytes)) {
+            return fromJSONString(new String(bytes, UTF_8));
+        }
+        final StateReader reader = new StateReader(bytes);
+        final String id = reader.readString();
+        final String crossingId = reader.readString();
+        final String laneId = reader.readString();
+        final RequesterRole roleOfRequester = RequesterRole.fromCode(reader.readByte());
+        final boolean isGranted = reader.readBoolean();
+        final boolean isActive = reader.readBoolean();
+        final int slot = reader.readInt();
+        final Request request = new Request(id, crossingId, laneId, roleOfRequester, isGranted, isActive, slot);
+        request.setLeaseExpiry(reader.readLong());
+        request.setQueued(reader.readBoolean());
+        return request;
     }
 
     public String getId() {
@@ -104,6 +154,53 @@ public class Request {
         this.active = isActive;
     }
 
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    public long getLeaseExpiry() {
+        return leaseExpiry;
+    }
+
+    public void setLeaseExpiry(long leaseExpiry) {
+        this.leaseExpiry = leaseExpiry;
+    }
+
+    public boolean isQueued() {
+        return queued;
+    }
+
+    public void setQueued(boolean queued) {
+        this.queued = queued;
+    }
+
+    /**
+     * Value of the active request index entry of this request: the lane id that completes the request key, and the
+     * lease expiry, so expired permissions can be skipped without reading the request record.
+     */
+    byte[] toActiveIndexEntry() {
+        return new StateWriter(laneId.length() + 12).writeString(laneId).writeLong(leaseExpiry).toByteArray();
+    }
+
+    /**
+     * Value of the waitlist entry of a queued request: the hash code of the requester's identity, which the lane
+     * selection uses when the request is served. The identity itself stays in the private data collection.
+     */
+    static byte[] toWaitlistEntry(final String clientId) {
+        return new StateWriter(8).writeInt(clientId.hashCode()).toByteArray();
+    }
+
+    /**
+     * Whether a lease expiry has passed. Requests without a lease never expire.
+     */
+    static boolean isLeaseExpired(final long leaseExpiry, final long now) {
+        return leaseExpiry != NO_LEASE && leaseExpiry < now;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -114,6 +211,9 @@ public class Request {
         result = prime * result + ((id == null) ? 0 : id.hashCode());
         result = prime * result + ((laneId == null) ? 0 : laneId.hashCode());
         result = prime * result + ((roleOfRequester == null) ? 0 : roleOfRequester.hashCode());
+        result = prime * result + slot;
+        result = prime * result + (int) (leaseExpiry ^ (leaseExpiry >>> 32));
+        result = prime * result + (queued ? 1231 : 1237);
         return result;
     }
 
@@ -147,6 +247,12 @@ public class Request {
             return false;
         if (roleOfRequester != other.roleOfRequester)
             return false;
+        if (slot != other.slot)
+            return false;
+        if (leaseExpiry != other.leaseExpiry)
+            return false;
+        if (queued != other.queued)
+            return false;
         return true;
     }
 
@@ -0,0 +1,48 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+import org.json.JSONObject;
+
+/**
+ * One page of a request listing. The bookmark continues the listing and is empty after the last page; filtered
+ * listings can return short pages before that.
+ */
+@DataType()
+public class RequestPage {
+
+    @Property()
+    private Request[] requests;
+
+    @Property()
+    private String bookmark;
+
+    public RequestPage(final Request[] requests, final String bookmark) {
+        this.requests = requests;
+        this.bookmark = bookmark;
+    }
+
+    public String toJSONString() {
+        return new JSONObject(this).toString();
+    }
+
+    public Request[] getRequests() {
+        return requests;
+    }
+
+    public void setRequests(Request[] requests) {
+        this.requests = requests;
+    }
+
+    public String getBookmark() {
+        return bookmark;
+    }
+
+    public void setBookmark(String bookmark) {
+        this.bookmark = bookmark;
+    }
+}
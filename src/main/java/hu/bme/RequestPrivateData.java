@@ -1,5 +1,7 @@
 package hu.bme;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import org.hyperledger.fabric.contract.annotation.DataType;
 import org.hyperledger.fabric.contract.annotation.Property;
 import org.json.JSONObject;
@@ -37,6 +39,23 @@ public class RequestPrivateData {
         return new RequestPrivateData(requestId, laneId, crossingId, clientId);
     }
 
+    public byte[] toBytes() {
+        return new StateWriter(96).writeString(requestId).writeString(laneId).writeString(crossingId)
+                .writeString(clientId).toByteArray();
+    }
+
+    public static RequestPrivateData fromBytes(byte[] bytes) {
+        if (StateReader.isLegacyJson(bytes)) {
+            return fromJSONString(new String(bytes, UTF_8));
+        }
+        StateReader reader = new StateReader(bytes);
+        String requestId = reader.readString();
+        String laneId = reader.readString();
+        String crossingId = reader.readString();
+        String clientId = reader.readString();
+        return new RequestPrivateData(requestId, laneId, crossingId, clientId);
+    }
+
     public String getRequestId() {
         return requestId;
     }
@@ -1,7 +1,31 @@
 package hu.bme;
 
+import org.hyperledger.fabric.shim.ChaincodeException;
+
 public enum RequesterRole {
-    TRAIN, CAR;
+    TRAIN(0), CAR(1);
+
+    private final int code;
+
+    RequesterRole(final int code) {
+        this.code = code;
+    }
+
+    /**
+     * The byte a role is stored as in the binary state format.
+     */
+    int code() {
+        return code;
+    }
+
+    static RequesterRole fromCode(final int code) {
+        for (final RequesterRole role : values()) {
+            if (role.code == code) {
+                return role;
+            }
+        }
+        throw new ChaincodeException("Unknown requester role code " + code);
+    }
 
     public static RequesterRole fromString(String role) {
         if (role.equals(TRAIN.name())) {
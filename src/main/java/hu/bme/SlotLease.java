@@ -0,0 +1,42 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+/**
+ * Value of an occupancy slot key: the request holding the slot and the epoch second its lease runs out.
+ */
+final class SlotLease {
+
+    static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    private final String requestId;
+    private final long expiresAt;
+
+    SlotLease(final String requestId, final long expiresAt) {
+        this.requestId = requestId;
+        this.expiresAt = expiresAt;
+    }
+
+    static SlotLease fromBytes(final byte[] bytes) {
+        final StateReader reader = new StateReader(bytes);
+        return new SlotLease(reader.readString(), reader.readLong());
+    }
+
+    byte[] toBytes() {
+        return new StateWriter(requestId.length() + 12).writeString(requestId).writeLong(expiresAt).toByteArray();
+    }
+
+    String getRequestId() {
+        return requestId;
+    }
+
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    boolean isExpired(final long now) {
+        return expiresAt < now;
+    }
+}
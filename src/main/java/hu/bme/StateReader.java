@@ -0,0 +1,68 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.hyperledger.fabric.shim.ChaincodeException;
+
+/**
+ * Reads ledger records written by {@link StateWriter}.
+ */
+final class StateReader {
+
+    private final byte[] buffer;
+    private int position;
+
+    StateReader(final byte[] buffer) {
+        this.buffer = buffer;
+        if (buffer[position++] != StateWriter.FORMAT_VERSION) {
+            throw new ChaincodeException("Unsupported state format version " + buffer[0]);
+        }
+    }
+
+    static boolean isLegacyJson(final byte[] buffer) {
+        return buffer.length > 0 && buffer[0] == '{';
+    }
+
+    String readString() {
+        final int length = (int) readVarLong() - 1;
+        if (length < 0) {
+            return null;
+        }
+        final String value = new String(buffer, position, length, UTF_8);
+        position += length;
+        return value;
+    }
+
+    boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    int readByte() {
+        return buffer[position++];
+    }
+
+    int readInt() {
+        return (int) readLong();
+    }
+
+    long readLong() {
+        final long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = buffer[position++];
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+
+/**
+ * Writes ledger records in the compact binary state format. Every record starts with {@link #FORMAT_VERSION}, which
+ * can never be the first byte of a legacy JSON record. Enums are written as the fixed code of their constant, never as
+ * their ordinal or name.
+ */
+final class StateWriter {
+
+    static final byte FORMAT_VERSION = 1;
+
+    private byte[] buffer;
+    private int position;
+
+    StateWriter(final int expectedSize) {
+        buffer = new byte[Math.max(expectedSize, 16)];
+        buffer[position++] = FORMAT_VERSION;
+    }
+
+    StateWriter writeString(final String value) {
+        if (value == null) {
+            return writeVarLong(0);
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        writeVarLong(bytes.length + 1L);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+        return this;
+    }
+
+    StateWriter writeBoolean(final boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    StateWriter writeByte(final int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    StateWriter writeInt(final int value) {
+        return writeLong(value);
+    }
+
+    StateWriter writeLong(final long value) {
+        return writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private StateWriter writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    private void ensureCapacity(final int additional) {
+        if (position + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + additional));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+/**
+ * The crossings a train corridor request holds, with the train request recorded at each of them, in the order the
+ * route passes them.
+ */
+final class TrainCorridor {
+
+    static final String TYPE = "TRAIN_CORRIDOR";
+
+    private final String id;
+    private final String[] crossingIds;
+    private final String[] requestIds;
+
+    TrainCorridor(final String id, final String[] crossingIds, final String[] requestIds) {
+        this.id = id;
+        this.crossingIds = crossingIds;
+        this.requestIds = requestIds;
+    }
+
+    static TrainCorridor fromBytes(final byte[] bytes) {
+        final StateReader reader = new StateReader(bytes);
+        final String id = reader.readString();
+        final String[] crossingIds = new String[reader.readInt()];
+        final String[] requestIds = new String[crossingIds.length];
+        for (int i = 0; i < crossingIds.length; i++) {
+            crossingIds[i] = reader.readString();
+            requestIds[i] = reader.readString();
+        }
+        return new TrainCorridor(id, crossingIds, requestIds);
+    }
+
+    byte[] toBytes() {
+        final StateWriter writer = new StateWriter(32 + crossingIds.length * 96);
+        writer.writeString(id).writeInt(crossingIds.length);
+        for (int i = 0; i < crossingIds.length; i++) {
+            writer.writeString(crossingIds[i]).writeString(requestIds[i]);
+        }
+        return writer.toByteArray();
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String[] getCrossingIds() {
+        return crossingIds;
+    }
+
+    String[] getRequestIds() {
+        return requestIds;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+/**
+ * A time window, in epoch seconds, reserved for a train at a crossing.
+ *
+ * Windows are stored under simple keys ordered by crossing and start, so the windows around a point in time are one
+ * bounded range read. Composite keys can only be scanned by prefix, not between two attribute values. Crossing ids
+ * containing the separator are rejected by {@link #isKeyableCrossingId}, so the range of one crossing never includes
+ * the windows of another, and the zero padded start sorts numerically.
+ */
+final class TrainWindow {
+
+    static final String TYPE = "TRAIN_WINDOW";
+    static final String REQUEST_INDEX_TYPE = "TRAIN_WINDOW_REQUEST";
+    private static final char SEPARATOR = '\u0001';
+
+    private final String requestId;
+    private final String crossingId;
+    private final long start;
+    private final long end;
+
+    TrainWindow(final String requestId, final String crossingId, final long start, final long end) {
+        this.requestId = requestId;
+        this.crossingId = crossingId;
+        this.start = start;
+        this.end = end;
+    }
+
+    static TrainWindow fromBytes(final byte[] bytes) {
+        final StateReader reader = new StateReader(bytes);
+        return new TrainWindow(reader.readString(), reader.readString(), reader.readLong(), reader.readLong());
+    }
+
+    byte[] toBytes() {
+        return new StateWriter(requestId.length() + crossingId.length() + 24).writeString(requestId)
+                .writeString(crossingId).writeLong(start).writeLong(end).toByteArray();
+    }
+
+    static boolean isKeyableCrossingId(final String crossingId) {
+        return crossingId.indexOf(SEPARATOR) < 0;
+    }
+
+    String getKey() {
+        return startKey(crossingId, start) + SEPARATOR + requestId;
+    }
+
+    /**
+     * The lowest key of the windows of the crossing that start at or after the given second.
+     */
+    static String startKey(final String crossingId, final long start) {
+        return TYPE + SEPARATOR + crossingId + SEPARATOR + String.format("%019d", Math.max(0L, start));
+    }
+
+    boolean overlaps(final long from, final long to) {
+        return start < to && from < end;
+    }
+
+    String getRequestId() {
+        return requestId;
+    }
+
+    String getCrossingId() {
+        return crossingId;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getEnd() {
+        return end;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * Per transaction function histograms of the wall time and the world state traffic of the transactions this
+ * chaincode process has served. Every peer runs its own chaincode process, so the numbers describe one peer. getState,
+ * putState and delState count the calls of the contract; peerReads and peerWrites count the ones that reached the
+ * peer past the {@link CachingStub}, so their difference is what the cache saved.
+ *
+ * The contract runtime calls afterTransaction only for transactions that returned. The contract reports the failures
+ * it raises itself when it raises them; every other failure is counted as ERROR, the transactions started but neither
+ * finished nor failed for a known reason. Transactions still running when the metrics are read are included in
+ * ERROR. The wall time of failed transactions is not recorded.
+ */
+final class TransactionMetrics {
+
+    static final String NOT_FOUND = "NOT_FOUND";
+    static final String ALREADY_EXISTS = "ALREADY_EXISTS";
+    static final String ACCESS_DENIED = "ACCESS_DENIED";
+    static final String ERROR = "ERROR";
+
+    static final class FunctionMetrics {
+        final Histogram latencyMicros = new Histogram();
+        final Histogram stateReads = new Histogram();
+        final Histogram peerReads = new Histogram();
+        final Histogram statePuts = new Histogram();
+        final Histogram stateDeletes = new Histogram();
+        final Histogram peerWrites = new Histogram();
+        final Histogram bytesRead = new Histogram();
+        final Histogram bytesWritten = new Histogram();
+        final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+        final LongAdder started = new LongAdder();
+
+        private void record(final CachingStub stub) {
+            stateReads.record(stub.getStateReads());
+            peerReads.record(stub.getPeerReads());
+            statePuts.record(stub.getStateWrites() - stub.getStateDeletes());
+            stateDeletes.record(stub.getStateDeletes());
+            peerWrites.record(stub.getPeerWrites());
+            bytesRead.record(stub.getBytesRead());
+            bytesWritten.record(stub.getBytesWritten());
+        }
+
+        long getFailures(final String reason) {
+            if (ERROR.equals(reason)) {
+                long known = 0;
+                for (final LongAdder count : failures.values()) {
+                    known += count.sum();
+                }
+                return Math.max(0L, started.sum() - latencyMicros.getCount() - known);
+            }
+            final LongAdder count = failures.get(reason);
+            return count == null ? 0L : count.sum();
+        }
+
+        JSONObject toJSON() {
+            final JSONObject failed = new JSONObject();
+            failures.forEach((reason, count) -> failed.put(reason, count.sum()));
+            final long errors = getFailures(ERROR);
+            if (errors > 0) {
+                failed.put(ERROR, errors);
+            }
+            return new JSONObject().put("latencyMicros", latencyMicros.toJSON())
+                    .put("getState", stateReads.toJSON()).put("peerReads", peerReads.toJSON())
+                    .put("putState", statePuts.toJSON()).put("delState", stateDeletes.toJSON())
+                    .put("peerWrites", peerWrites.toJSON()).put("bytesRead", bytesRead.toJSON())
+                    .put("bytesWritten", bytesWritten.toJSON()).put("failures", failed);
+        }
+    }
+
+    private final Map<String, FunctionMetrics> functions = new ConcurrentHashMap<>();
+    private final AtomicLong lastDump;
+    private final long dumpIntervalNanos;
+
+    TransactionMetrics(final long dumpIntervalNanos) {
+        this.dumpIntervalNanos = dumpIntervalNanos;
+        this.lastDump = new AtomicLong(System.nanoTime());
+    }
+
+    void started(final CrossingContext ctx) {
+        ctx.setStartNanos(System.nanoTime());
+        functionMetrics(ctx.getCachingStub().getFunction()).started.increment();
+    }
+
+    /**
+     * Records a transaction that is about to fail for a known reason, with the state traffic it caused so far.
+     */
+    void failed(final CrossingContext ctx, final String reason) {
+        final FunctionMetrics metrics = functionMetrics(ctx.getCachingStub().getFunction());
+        metrics.failures.computeIfAbsent(reason, key -> new LongAdder()).increment();
+        metrics.record(ctx.getCachingStub());
+    }
+
+    /**
+     * Records a transaction that returned. Returns true if the caller should dump the metrics, which happens at most
+     * once per dump interval across all threads.
+     */
+    boolean finished(final CrossingContext ctx) {
+        final long now = System.nanoTime();
+        final FunctionMetrics metrics = functionMetrics(ctx.getCachingStub().getFunction());
+        metrics.latencyMicros.record((now - ctx.getStartNanos()) / 1000L);
+        metrics.record(ctx.getCachingStub());
+        final long last = lastDump.get();
+        return now - last >= dumpIntervalNanos && lastDump.compareAndSet(last, now);
+    }
+
+    FunctionMetrics get(final String function) {
+        return functions.get(function);
+    }
+
+    JSONObject toJSON() {
+        final JSONObject json = new JSONObject();
+        new TreeMap<>(functions).forEach((function, metrics) -> json.put(function, metrics.toJSON()));
+        return json;
+    }
+
+    private FunctionMetrics functionMetrics(final String function) {
+        final String name = function == null ? "unknown" : function;
+        final FunctionMetrics metrics = functions.get(name);
+        return metrics != null ? metrics : functions.computeIfAbsent(name, key -> new FunctionMetrics());
+    }
+}
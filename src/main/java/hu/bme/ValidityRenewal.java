@@ -0,0 +1,48 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+import org.json.JSONObject;
+
+/**
+ * The outcome of a batch validity renewal: the renewed crossings, and the ids of the crossings that were skipped
+ * because they do not exist or a train holds them.
+ */
+@DataType()
+public class ValidityRenewal {
+
+    @Property()
+    private Crossing[] renewed;
+
+    @Property()
+    private String[] skipped;
+
+    public ValidityRenewal(final Crossing[] renewed, final String[] skipped) {
+        this.renewed = renewed;
+        this.skipped = skipped;
+    }
+
+    public String toJSONString() {
+        return new JSONObject(this).toString();
+    }
+
+    public Crossing[] getRenewed() {
+        return renewed;
+    }
+
+    public void setRenewed(Crossing[] renewed) {
+        this.renewed = renewed;
+    }
+
+    public String[] getSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(String[] skipped) {
+        this.skipped = skipped;
+    }
+}
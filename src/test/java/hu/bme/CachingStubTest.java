@@ -0,0 +1,154 @@
+/*
+ * SPDX-License-Identifier: Apache License 2.0
+ */
+
+package hu.bme;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class CachingStubTest {
+    private ChaincodeStub delegate;
+    private CachingStub stub;
+
+    @BeforeEach
+    void init() {
+        delegate = mock(ChaincodeStub.class);
+        stub = new CachingStub(delegate);
+    }
+
+    @Test
+    void repeatedReadsHitThePeerOnce() {
+        when(delegate.getState("key")).thenReturn(new byte[] { 42 });
+
+        stub.getState("key");
+        stub.getState("key");
+        byte[] value = stub.getState("key");
+
+        assertArrayEquals(new byte[] { 42 }, value);
+        verify(delegate, times(1)).getState("key");
+        assertEquals(3, stub.getStateReads());
+        assertEquals(1, stub.getPeerReads());
+    }
+
+    @Test
+    void missingKeysAreCached() {
+        when(delegate.getState("key")).thenReturn(null);
+
+        stub.getState("key");
+        byte[] value = stub.getState("key");
+
+        assertEquals(0, value.length);
+        verify(delegate, times(1)).getState("key");
+    }
+
+    @Test
+    void readsOwnWrites() {
+        stub.putState("key", new byte[] { 1 });
+
+        byte[] value = stub.getState("key");
+
+        assertArrayEquals(new byte[] { 1 }, value);
+        verify(delegate, times(0)).getState("key");
+    }
+
+    @Test
+    void readsOwnDeletes() {
+        when(delegate.getState("key")).thenReturn(new byte[] { 42 });
+
+        stub.getState("key");
+        stub.delState("key");
+        byte[] value = stub.getState("key");
+
+        assertEquals(0, value.length);
+        verify(delegate, times(1)).getState("key");
+    }
+
+    @Test
+    void writesAreBufferedUntilFlush() {
+        stub.putState("key", new byte[] { 1 });
+        stub.delState("other");
+
+        verify(delegate, never()).putState("key", new byte[] { 1 });
+        verify(delegate, never()).delState("other");
+
+        stub.flush();
+
+        verify(delegate).putState("key", new byte[] { 1 });
+        verify(delegate).delState("other");
+    }
+
+    @Test
+    void repeatedWritesAreCoalesced() {
+        stub.putState("key", new byte[] { 1 });
+        stub.putState("key", new byte[] { 2 });
+        stub.putState("key", new byte[] { 3 });
+        stub.flush();
+
+        verify(delegate, never()).putState("key", new byte[] { 1 });
+        verify(delegate, never()).putState("key", new byte[] { 2 });
+        verify(delegate, times(1)).putState("key", new byte[] { 3 });
+        assertEquals(3, stub.getStateWrites());
+        assertEquals(1, stub.getPeerWrites());
+    }
+
+    @Test
+    void deleteAfterWriteOnlyDeletes() {
+        stub.putState("key", new byte[] { 1 });
+        stub.delState("key");
+        stub.flush();
+
+        verify(delegate, never()).putState("key", new byte[] { 1 });
+        verify(delegate, times(1)).delState("key");
+    }
+
+    @Test
+    void countsDeletesAndBytes() {
+        when(delegate.getState("key")).thenReturn(new byte[] { 1, 2, 3 });
+
+        stub.getState("key");
+        stub.getState("key");
+        stub.putState("key", new byte[] { 4, 5 });
+        stub.delState("other");
+        stub.flush();
+
+        assertEquals(3, stub.getBytesRead());
+        assertEquals(2, stub.getBytesWritten());
+        assertEquals(2, stub.getStateWrites());
+        assertEquals(1, stub.getStateDeletes());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void countsTheBytesOfIteratedRangeResults() throws Exception {
+        KeyValue first = mock(KeyValue.class);
+        when(first.getValue()).thenReturn(new byte[] { 1, 2 });
+        KeyValue second = mock(KeyValue.class);
+        when(second.getValue()).thenReturn(new byte[] { 3, 4, 5 });
+        QueryResultsIterator<KeyValue> results = mock(QueryResultsIterator.class);
+        when(results.iterator()).thenAnswer(invocation -> Arrays.asList(first, second).iterator());
+        when(delegate.getStateByRange("a", "b")).thenReturn(results);
+
+        try (QueryResultsIterator<KeyValue> range = stub.getStateByRange("a", "b")) {
+            range.iterator().next();
+            assertEquals(2, stub.getBytesRead());
+            range.forEach(entry -> { });
+        }
+
+        assertEquals(7, stub.getBytesRead());
+        verify(results).close();
+    }
+}
@@ -4,10 +4,13 @@
 
 package hu.bme;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -17,7 +20,12 @@ import static org.mockito.Mockito.when;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import org.apache.log4j.Logger;
 import org.hyperledger.fabric.contract.ClientIdentity;
@@ -25,9 +33,15 @@ import org.hyperledger.fabric.contract.Context;
 import org.hyperledger.fabric.shim.ChaincodeException;
 import org.hyperledger.fabric.shim.ChaincodeStub;
 import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 
 
 final class CrossingContractTest {
@@ -38,20 +52,59 @@ final class CrossingContractTest {
     private String crossingId;
     private CompositeKey crossingCompKey;
     private String railwayAdminId = "x509::CN=RailwayOrg Admin, OU=admin::CN=RailwayOrg CA";
-    private long requestId;
-    private Random rand;
+    private String requestId;
+    private final LedgerSimulator ledger = new LedgerSimulator();
+    private long clock = 1000;
+
     @BeforeEach
     void init(){
         ctx = mock(Context.class);
         stub = mock(ChaincodeStub.class);
         when(ctx.getStub()).thenReturn(stub);
+        when(stub.createCompositeKey(ArgumentMatchers.anyString(), ArgumentMatchers.<String>any())).thenAnswer(
+                invocation -> new CompositeKey(invocation.getArgument(0), Arrays.stream(invocation.getArguments())
+                        .skip(1).map(String.class::cast).toArray(String[]::new)));
         crossingId = "001";
         crossingCompKey = new CompositeKey(Crossing.TYPE,crossingId);
         when(stub.createCompositeKey(Crossing.TYPE, crossingId)).thenReturn(crossingCompKey);
         when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
-        rand = new Random(0);
-        requestId = rand.nextLong();
-        
+        requestId = "5f0c3ab1e2d94c7c8f1d2b6a9e4f0371c5a8d2e6b9f1c4a7d0e3b6c9f2a5d8e1";
+        when(stub.getTxId()).thenReturn(requestId);
+        QueryResultsIterator<KeyValue> noSlots = results();
+        when(stub.getStateByPartialCompositeKey(ArgumentMatchers.<CompositeKey>any())).thenReturn(noSlots);
+        QueryResultsIterator<KeyValue> noWindows = results();
+        when(stub.getStateByRange(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).thenReturn(noWindows);
+    }
+
+    @SuppressWarnings("unchecked")
+    private QueryResultsIterator<KeyValue> results(final KeyValue... values) {
+        QueryResultsIterator<KeyValue> results = mock(QueryResultsIterator.class);
+        when(results.iterator()).thenAnswer(invocation -> Arrays.asList(values).iterator());
+        return results;
+    }
+
+    private KeyValue keyValue(final String key, final byte[] value) {
+        KeyValue keyValue = mock(KeyValue.class);
+        when(keyValue.getKey()).thenReturn(key);
+        when(keyValue.getValue()).thenReturn(value);
+        return keyValue;
+    }
+
+    private SimulatedStub newTransaction(final SimulatedIdentity identity, final String function) {
+        return ledger.newTransaction(identity, Instant.ofEpochSecond(clock++), function);
+    }
+
+    /** Runs a transaction on the simulated ledger and commits it, which must be valid. */
+    private <T> T submit(final SimulatedIdentity identity, final String function, final Function<Context, T> transaction) {
+        SimulatedStub stub = newTransaction(identity, function);
+        T result = ledger.invoke(contract, stub, transaction);
+        assertEquals(LedgerSimulator.ValidationCode.VALID, ledger.commit(stub));
+        return result;
+    }
+
+    /** Runs a query on the simulated ledger without committing it. */
+    private <T> T evaluate(final Function<Context, T> query) {
+        return ledger.invoke(contract, newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "evaluate"), query);
     }
 
 
@@ -118,10 +171,9 @@ final class CrossingContractTest {
             when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
 
             Crossing cross = new Crossing(crossingId, laneIds, crossing.getState(), crossing.isPriorityLock(),60);
-            String json = cross.toJSONString();
             contract.createCrossing(ctx, crossingId, laneIds, 1);
 
-            verify(stub).putState(crossingCompKey.toString(), json.getBytes(UTF_8));
+            verify(stub).putState(crossingCompKey.toString(), cross.toBytes());
         }
 
         @Test
@@ -164,7 +216,10 @@ final class CrossingContractTest {
             String[] laneIds = new String[1];
             laneIds[0] = "01";
             Crossing crossing = new Crossing(crossingId, laneIds, CrossingState.FREE_TO_CROSS, false, 0);
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            CompositeKey laneCompositeKey = new CompositeKey(Lane.TYPE, laneIds[0], crossingId);
+            when(stub.createCompositeKey(Lane.TYPE, laneIds[0], crossingId)).thenReturn(laneCompositeKey);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(new Lane(laneIds[0], crossingId, 1, 0, false).toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             Crossing returnedCrossing = contract.readCrossing(ctx,crossingId);
             assertEquals(returnedCrossing,crossing);
@@ -204,9 +259,9 @@ final class CrossingContractTest {
             when(clientIdentity.getMSPID()).thenReturn(msp);
             when(clientIdentity.getId()).thenReturn(railwayAdminId);
             Lane lane = new Lane(laneIds[0], crossingId, 1, 0, false);
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
             Crossing crossing = new Crossing(crossingId, laneIds, CrossingState.FREE_TO_CROSS, false, 0);
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             contract.deleteCrossing(ctx, crossingId);
             verify(stub,times(1)).delState(laneCompositeKey.toString());
@@ -302,7 +357,7 @@ final class CrossingContractTest {
         void newLaneCreate() {
 
             when(stub.getState(laneCompositeKey.toString())).thenReturn(new byte[] {});
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
             ClientIdentity clientIdentity = mock(ClientIdentity.class);
             when(clientIdentity.getId()).thenReturn(railwayAdminId);
             when(ctx.getClientIdentity()).thenReturn(clientIdentity);
@@ -313,8 +368,10 @@ final class CrossingContractTest {
             Crossing updatedCrossing = new Crossing(crossingId, new String[] {laneId}, crossing.getState(), false, 60);
             contract.createLane(ctx, laneId, crossingId, lane.getCapacity());
 
-            verify(stub).putState(crossingCompKey.toString(), updatedCrossing.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
+            verify(stub).putState(crossingCompKey.toString(), updatedCrossing.toBytes());
+            verify(stub).putState(new CompositeKey(Lane.CROSSING_LANE_TYPE, crossingId, laneId).toString(),
+                    lane.toBytes());
+            verify(stub).delState(laneCompositeKey.toString());
         }
 
         @Test
@@ -375,14 +432,14 @@ final class CrossingContractTest {
             Lane lane = new Lane(laneId, crossingId, 1, 0, false);
             Crossing crossing = new Crossing(crossingId, new String[] {laneId}, CrossingState.FREE_TO_CROSS, false, 0);
 
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             contract.deleteLane(ctx,laneId, crossingId);
             
             crossing.setLaneIds(new String[] {});
             verify(stub,times(1)).delState(laneCompositeKey.toString());
-            verify(stub,times(1)).putState(crossingCompKey.toString(),crossing.toJSONString().getBytes(UTF_8));
+            verify(stub,times(1)).putState(crossingCompKey.toString(),crossing.toBytes());
         }
         @Test
         void deleteNonExistent(){
@@ -434,14 +491,27 @@ final class CrossingContractTest {
         }
         @Test
         void laneReadValid() {
-            when(stub.getState(laneCompKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
             Lane returnedLane = contract.readLane(ctx,laneId,crossingId);
             assertEquals(lane,returnedLane);
         }
+        @Test
+        void laneReadCountsOccupiedSlots() {
+            CompositeKey occupancyKey = new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneId);
+            when(stub.createCompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneId)).thenReturn(occupancyKey);
+            KeyValue slot = keyValue(occupancyKey.toString() + "0", new SlotLease("1", 300).toBytes());
+            QueryResultsIterator<KeyValue> slots = results(slot);
+            when(stub.getStateByPartialCompositeKey(occupancyKey)).thenReturn(slots);
+            when(stub.getState(laneCompKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+
+            assertEquals(1, contract.readLane(ctx, laneId, crossingId).getOccupied());
+        }
+
         @Test
         void laneReadNonExistentLane() {
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
             Exception thrown = assertThrows(ChaincodeException.class, () -> {
                 contract.readLane(ctx, laneId, crossingId);
             });
@@ -450,7 +520,7 @@ final class CrossingContractTest {
         
         @Test
         void laneReadNonExistentCrossing(){
-            when(stub.getState(laneCompKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompKey.toString())).thenReturn(lane.toBytes());
             Exception thrown = assertThrows(ChaincodeException.class, () -> {
                 contract.readLane(ctx, laneId, crossingId);
             });
@@ -465,12 +535,14 @@ final class CrossingContractTest {
         private Crossing crossing;
         private final String msp = "RailwayOrgMSP";
         private CompositeKey laneCompositeKey;
+        private CompositeKey crossingLaneKey;
         private Lane lane;
 
         @BeforeEach
         void init(){
             laneIds = new String[] {"01"};
             laneCompositeKey = new CompositeKey(Lane.TYPE, laneIds[0],crossingId);
+            crossingLaneKey = new CompositeKey(Lane.CROSSING_LANE_TYPE, crossingId, laneIds[0]);
             crossing = new Crossing(crossingId, laneIds , CrossingState.FREE_TO_CROSS, false, 0);
             lane = new Lane(laneIds[0], crossingId, 1, 0, false);
             when(stub.createCompositeKey(Lane.TYPE, laneIds[0],crossingId)).thenReturn(laneCompositeKey);
@@ -493,8 +565,8 @@ final class CrossingContractTest {
             when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, "N/A", crossingId)).thenReturn(requestPrivateDataCompositeKey);
             when(stub.createCompositeKey(Request.TYPE, ""+requestId, "N/A", crossingId)).thenReturn(requestCompositeKey);
 
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             Request returnedRequest = contract.requestTrainCrossing(ctx, crossingId);
 
@@ -502,27 +574,19 @@ final class CrossingContractTest {
 
             crossing.setPriorityLock(true);
             crossing.setState(CrossingState.LOCKED);
-            verify(stub).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
-            MessageDigest digest;
-            try {
-                digest = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException();
-            }
-            byte[] hash = digest.digest(privateData.toJSONString().getBytes(UTF_8));
-    
-            
+            verify(stub).putState(crossingCompKey.toString(), crossing.toBytes());
             lane.setPriorityLock(true);
-            verify(stub).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestCompositeKey.toString(), request.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestPrivateDataCompositeKey.toString(), hash);
+            verify(stub).putState(crossingLaneKey.toString(), lane.toBytes());
+            verify(stub).delState(laneCompositeKey.toString());
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
+            verify(stub).putPrivateData(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString(),
+                    privateData.toBytes());
+            verify(stub, never()).putState(eq(requestPrivateDataCompositeKey.toString()), any());
         }
 
         @Test
         void trainRequestDeniedFreeToCrossExpired(){
             when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(99999));
-            rand = new Random(Instant.ofEpochMilli(99999).getEpochSecond());
-            requestId = rand.nextLong();
             ClientIdentity clientIdentity = mock(ClientIdentity.class);
             when(ctx.getClientIdentity()).thenReturn(clientIdentity);
             when(clientIdentity.getMSPID()).thenReturn(msp);
@@ -536,8 +600,8 @@ final class CrossingContractTest {
             when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, "N/A", crossingId)).thenReturn(requestPrivateDataCompositeKey);
             when(stub.createCompositeKey(Request.TYPE, ""+requestId, "N/A", crossingId)).thenReturn(requestCompositeKey);
 
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             Request returnedRequest = contract.requestTrainCrossing(ctx, crossingId);
 
@@ -545,25 +609,20 @@ final class CrossingContractTest {
 
             crossing.setPriorityLock(true);
             crossing.setState(CrossingState.LOCKED);
-            verify(stub).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
-            MessageDigest digest;
-            try {
-                digest = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException();
-            }
-            byte[] hash = digest.digest(privateData.toJSONString().getBytes(UTF_8));
-    
-            
+            verify(stub).putState(crossingCompKey.toString(), crossing.toBytes());
             lane.setPriorityLock(true);
-            verify(stub).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestCompositeKey.toString(), request.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestPrivateDataCompositeKey.toString(), hash);
+            verify(stub).putState(crossingLaneKey.toString(), lane.toBytes());
+            verify(stub).delState(laneCompositeKey.toString());
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
+            verify(stub).putPrivateData(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString(),
+                    privateData.toBytes());
+            verify(stub, never()).putState(eq(requestPrivateDataCompositeKey.toString()), any());
         }
         
         @Test
         void trainRequestDeniedCrossingLocked(){
             crossing.setState(CrossingState.LOCKED);
+            crossing.setPriorityLock(true);
             when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
             ClientIdentity clientIdentity = mock(ClientIdentity.class);
             when(ctx.getClientIdentity()).thenReturn(clientIdentity);
@@ -578,8 +637,8 @@ final class CrossingContractTest {
             when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, "N/A", crossingId)).thenReturn(requestPrivateDataCompositeKey);
             when(stub.createCompositeKey(Request.TYPE, ""+requestId, "N/A", crossingId)).thenReturn(requestCompositeKey);
 
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             Request returnedRequest = contract.requestTrainCrossing(ctx, crossingId);
 
@@ -587,21 +646,40 @@ final class CrossingContractTest {
 
             crossing.setPriorityLock(true);
             crossing.setState(CrossingState.LOCKED);
-            verify(stub).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
-            MessageDigest digest;
-            try {
-                digest = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException();
-            }
-            byte[] hash = digest.digest(privateData.toJSONString().getBytes(UTF_8));
-    
-            
+            verify(stub).putState(crossingCompKey.toString(), crossing.toBytes());
             lane.setPriorityLock(true);
-            verify(stub).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestCompositeKey.toString(), request.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestPrivateDataCompositeKey.toString(), hash);
+            verify(stub).putState(crossingLaneKey.toString(), lane.toBytes());
+            verify(stub).delState(laneCompositeKey.toString());
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
+            verify(stub).putPrivateData(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString(),
+                    privateData.toBytes());
+            verify(stub, never()).putState(eq(requestPrivateDataCompositeKey.toString()), any());
+
+        }
+
+        @Test
+        void trainRequestDeniedLaneOccupied(){
+            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
+            ClientIdentity clientIdentity = mock(ClientIdentity.class);
+            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
+            when(clientIdentity.getMSPID()).thenReturn(msp);
+            when(clientIdentity.getId()).thenReturn(railwayAdminId);
+            lane = new Lane(laneIds[0], crossingId, 1, 1, false);
+            CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId, "N/A", crossingId);
+            CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, "N/A", crossingId);
+
+            when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, "N/A", crossingId)).thenReturn(requestPrivateDataCompositeKey);
+            when(stub.createCompositeKey(Request.TYPE, ""+requestId, "N/A", crossingId)).thenReturn(requestCompositeKey);
 
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+
+            Request returnedRequest = contract.requestTrainCrossing(ctx, crossingId);
+
+            assertFalse(returnedRequest.isGranted());
+            crossing.setPriorityLock(true);
+            crossing.setState(CrossingState.LOCKED);
+            verify(stub).putState(crossingCompKey.toString(), crossing.toBytes());
         }
 
         @Test
@@ -624,26 +702,28 @@ final class CrossingContractTest {
             } catch (NoSuchAlgorithmException e) {
                 throw new RuntimeException();
             }
-            byte[] hash = digest.digest(privateData.toJSONString().getBytes(UTF_8));
+            byte[] hash = digest.digest(privateData.toBytes());
 
             when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, "N/A", crossingId)).thenReturn(requestPrivateDataCompositeKey);
             when(stub.createCompositeKey(Request.TYPE, ""+requestId, "N/A", crossingId)).thenReturn(requestCompositeKey);
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
-            when(stub.getState(requestCompositeKey.toString())).thenReturn(request.toJSONString().getBytes(UTF_8));
-            when(stub.getState(requestPrivateDataCompositeKey.toString())).thenReturn(hash);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+            when(stub.getState(requestCompositeKey.toString())).thenReturn(request.toBytes());
+            when(stub.getPrivateDataHash(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString())).thenReturn(hash);
 
             contract.releaseTrainPermission(ctx,requestId,crossingId);
 
             crossing.setPriorityLock(false);
             crossing.setState(CrossingState.FREE_TO_CROSS);
             crossing.setValidUntil(60);
-            verify(stub).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
+            verify(stub).putState(crossingCompKey.toString(), crossing.toBytes());
             lane.setPriorityLock(false);
 
-            verify(stub).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
+            verify(stub).putState(crossingLaneKey.toString(), lane.toBytes());
+            verify(stub).delState(laneCompositeKey.toString());
             request.setActive(false);
-            verify(stub).putState(requestCompositeKey.toString(), request.toJSONString().getBytes(UTF_8));
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
+            verify(stub).setEvent(eq(CrossingEvent.RELEASED), any());
         }
 
         @Test
@@ -666,13 +746,13 @@ final class CrossingContractTest {
             } catch (NoSuchAlgorithmException e) {
                 throw new RuntimeException();
             }
-            byte[] hash = digest.digest(privateData.toJSONString().getBytes(UTF_8));
+            byte[] hash = digest.digest(privateData.toBytes());
 
             when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, "N/A", crossingId)).thenReturn(requestPrivateDataCompositeKey);
             when(stub.createCompositeKey(Request.TYPE, ""+requestId, "N/A", crossingId)).thenReturn(requestCompositeKey);
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
-            when(stub.getState(requestCompositeKey.toString())).thenReturn(request.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+            when(stub.getState(requestCompositeKey.toString())).thenReturn(request.toBytes());
             when(stub.getState(requestPrivateDataCompositeKey.toString())).thenReturn(hash);
             
             Exception thrown = assertThrows(ChaincodeException.class, () -> {
@@ -689,6 +769,7 @@ final class CrossingContractTest {
         private Crossing crossing;
         private final String msp = "VehicleOwnerOrgMSP";
         private CompositeKey laneCompositeKey;
+        private CompositeKey crossingLaneKey;
         private Lane lane;
         private String clientId = "vehichleOwner";
 
@@ -696,10 +777,15 @@ final class CrossingContractTest {
         void init(){
             laneIds = new String[] {"01"};
             laneCompositeKey = new CompositeKey(Lane.TYPE, laneIds[0],crossingId);
+            crossingLaneKey = new CompositeKey(Lane.CROSSING_LANE_TYPE, crossingId, laneIds[0]);
             crossing = new Crossing(crossingId, laneIds , CrossingState.FREE_TO_CROSS, false, 0);
             lane = new Lane(laneIds[0], crossingId, 1, 0, false);
             when(stub.createCompositeKey(Lane.TYPE, laneIds[0],crossingId)).thenReturn(laneCompositeKey);
             when(stub.createCompositeKey(Crossing.TYPE, crossingId)).thenReturn(crossingCompKey);
+            for (String slot : new String[] {"0", "1"}) {
+                when(stub.createCompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], slot))
+                        .thenReturn(new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], slot));
+            }
         }
 
         @Test
@@ -710,7 +796,8 @@ final class CrossingContractTest {
             when(clientIdentity.getMSPID()).thenReturn(msp);
             when(clientIdentity.getId()).thenReturn(clientId);
             lane = new Lane(laneIds[0], crossingId, 1, 0, false);
-            Request request = new Request(""+requestId, crossingId,laneIds[0], RequesterRole.CAR, true, true);
+            Request request = new Request(""+requestId, crossingId,laneIds[0], RequesterRole.CAR, true, true, 0);
+            request.setLeaseExpiry(300);
             CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId, laneIds[0],crossingId);
             RequestPrivateData privateData = new RequestPrivateData(""+requestId, laneIds[0], crossingId, clientId);
             CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,laneIds[0], crossingId);
@@ -718,28 +805,93 @@ final class CrossingContractTest {
             when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, laneIds[0], crossingId)).thenReturn(requestPrivateDataCompositeKey);
             when(stub.createCompositeKey(Request.TYPE, ""+requestId, laneIds[0],crossingId)).thenReturn(requestCompositeKey);
 
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             Request returnedRequest = contract.requestCarCrossing(ctx, crossingId);
 
             assertTrue(returnedRequest.isGranted());
+            assertEquals(0, returnedRequest.getSlot());
+
+            verify(stub, never()).putState(eq(crossingCompKey.toString()), any());
+            verify(stub, never()).putState(eq(crossingLaneKey.toString()), any());
+            verify(stub).putState(new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], "0").toString(),
+                    new SlotLease(requestId, 300).toBytes());
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
+            verify(stub).putPrivateData(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString(),
+                    privateData.toBytes());
+            verify(stub, never()).putState(eq(requestPrivateDataCompositeKey.toString()), any());
+            verify(stub).setEvent(eq(CrossingEvent.GRANTED), any());
+        }
 
-            crossing.setState(CrossingState.LOCKED);
-            verify(stub).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
-            MessageDigest digest;
-            try {
-                digest = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException();
-            }
-            byte[] hash = digest.digest(privateData.toJSONString().getBytes(UTF_8));
-    
-            
-            lane.setOccupied(1);
-            verify(stub).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestCompositeKey.toString(), request.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestPrivateDataCompositeKey.toString(), hash);
+        @Test
+        void carRequestLeasedForTheLeaseDurationOfTheCrossing(){
+            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
+            ClientIdentity clientIdentity = mock(ClientIdentity.class);
+            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
+            when(clientIdentity.getMSPID()).thenReturn(msp);
+            when(clientIdentity.getId()).thenReturn(clientId);
+            crossing.setMaxLeaseDuration(90);
+            CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId, laneIds[0],crossingId);
+            CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,laneIds[0], crossingId);
+            when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, laneIds[0], crossingId)).thenReturn(requestPrivateDataCompositeKey);
+            when(stub.createCompositeKey(Request.TYPE, ""+requestId, laneIds[0],crossingId)).thenReturn(requestCompositeKey);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+
+            Request returnedRequest = contract.requestCarCrossing(ctx, crossingId);
+
+            assertEquals(90, returnedRequest.getLeaseExpiry());
+            verify(stub).putState(new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], "0").toString(),
+                    new SlotLease(requestId, 90).toBytes());
+        }
+
+        @Test
+        void carRequestGrantedOnNextFreeSlot(){
+            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
+            ClientIdentity clientIdentity = mock(ClientIdentity.class);
+            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
+            when(clientIdentity.getMSPID()).thenReturn(msp);
+            when(clientIdentity.getId()).thenReturn(clientId);
+            lane = new Lane(laneIds[0], crossingId, 2, 0, false);
+            CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId, laneIds[0],crossingId);
+            CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,laneIds[0], crossingId);
+            when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId, laneIds[0], crossingId)).thenReturn(requestPrivateDataCompositeKey);
+            when(stub.createCompositeKey(Request.TYPE, ""+requestId, laneIds[0],crossingId)).thenReturn(requestCompositeKey);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+            when(stub.getState(new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], "0").toString()))
+                    .thenReturn(new SlotLease("other", 300).toBytes());
+
+            Request returnedRequest = contract.requestCarCrossing(ctx, crossingId);
+
+            assertTrue(returnedRequest.isGranted());
+            assertEquals(1, returnedRequest.getSlot());
+            verify(stub, never()).putState(eq(new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], "0").toString()), any());
+            verify(stub).putState(new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], "1").toString(),
+                    new SlotLease(requestId, 300).toBytes());
+        }
+
+        @Test
+        void carRequestGrantedOnExpiredLease(){
+            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochSecond(1000));
+            ClientIdentity clientIdentity = mock(ClientIdentity.class);
+            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
+            when(clientIdentity.getMSPID()).thenReturn(msp);
+            when(clientIdentity.getId()).thenReturn(clientId);
+            lane = new Lane(laneIds[0], crossingId, 1, 0, false);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+            when(stub.getState(new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], "0").toString()))
+                    .thenReturn(new SlotLease("other", 999).toBytes());
+
+            Request returnedRequest = contract.requestCarCrossing(ctx, crossingId);
+
+            assertTrue(returnedRequest.isGranted());
+            assertEquals(0, returnedRequest.getSlot());
+            assertEquals(1300, returnedRequest.getLeaseExpiry());
+            verify(stub).putState(new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], "0").toString(),
+                    new SlotLease(requestId, 1300).toBytes());
         }
 
         @Test
@@ -752,6 +904,7 @@ final class CrossingContractTest {
             when(clientIdentity.getId()).thenReturn(clientId);
             lane = new Lane(laneIds[0], crossingId, 1,1, false);
             Request request = new Request(""+requestId, crossingId,"N/A", RequesterRole.CAR,false,false);
+            request.setQueued(true);
             CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId, "N/A",crossingId);
             RequestPrivateData privateData = new RequestPrivateData(""+requestId,"N/A", crossingId, clientId);
             CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,"N/A", crossingId);
@@ -759,27 +912,23 @@ final class CrossingContractTest {
             when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,"N/A", crossingId)).thenReturn(requestPrivateDataCompositeKey);
             when(stub.createCompositeKey(Request.TYPE, ""+requestId, "N/A",crossingId)).thenReturn(requestCompositeKey);
 
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             Request returnedRequest = contract.requestCarCrossing(ctx, crossingId);
 
             assertFalse(returnedRequest.isGranted());
 
-            verify(stub,never()).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
-            MessageDigest digest;
-            try {
-                digest = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException();
-            }
-            byte[] hash = digest.digest(privateData.toJSONString().getBytes(UTF_8));
-    
-            
+            verify(stub,never()).putState(crossingCompKey.toString(), crossing.toBytes());
             lane.setOccupied(1);
-            verify(stub,never()).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestCompositeKey.toString(), request.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestPrivateDataCompositeKey.toString(), hash);
+            verify(stub,never()).putState(crossingLaneKey.toString(), lane.toBytes());
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
+            verify(stub).putState(new CompositeKey(Request.WAITLIST_TYPE, crossingId, String.format("%019d", 0), requestId).toString(),
+                    Request.toWaitlistEntry(clientId));
+            verify(stub).putPrivateData(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString(),
+                    privateData.toBytes());
+            verify(stub, never()).putState(eq(requestPrivateDataCompositeKey.toString()), any());
+            verify(stub).setEvent(eq(CrossingEvent.DENIED), any());
         }
 
         @Test
@@ -793,6 +942,7 @@ final class CrossingContractTest {
             when(clientIdentity.getId()).thenReturn(clientId);
             lane = new Lane(laneIds[0], crossingId, 1,0,true);
             Request request = new Request(""+requestId, crossingId,"N/A", RequesterRole.CAR,false,false);
+            request.setQueued(true);
             CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId,"N/A", crossingId);
             RequestPrivateData privateData = new RequestPrivateData(""+requestId,"N/A", crossingId, clientId);
             CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,"N/A", crossingId);
@@ -800,31 +950,118 @@ final class CrossingContractTest {
             when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,"N/A", crossingId)).thenReturn(requestPrivateDataCompositeKey);
             when(stub.createCompositeKey(Request.TYPE, ""+requestId, "N/A",crossingId)).thenReturn(requestCompositeKey);
 
-            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toJSONString().getBytes(UTF_8));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
 
             Request returnedRequest = contract.requestCarCrossing(ctx, crossingId);
 
             assertFalse(returnedRequest.isGranted());
 
-            verify(stub,never()).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
+            verify(stub,never()).putState(crossingCompKey.toString(), crossing.toBytes());
+            lane.setOccupied(1);
+            verify(stub,never()).putState(crossingLaneKey.toString(), lane.toBytes());
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
+            verify(stub).putState(new CompositeKey(Request.WAITLIST_TYPE, crossingId, String.format("%019d", 0), requestId).toString(),
+                    Request.toWaitlistEntry(clientId));
+            verify(stub).putPrivateData(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString(),
+                    privateData.toBytes());
+            verify(stub, never()).putState(eq(requestPrivateDataCompositeKey.toString()), any());
+        }
+
+        @Test
+        void crossingReadLockedWhileLaneOccupied(){
+            lane = new Lane(laneIds[0], crossingId, 2, 1, false);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+
+            assertEquals(CrossingState.LOCKED, contract.readCrossing(ctx, crossingId).getState());
+
+            lane.setOccupied(0);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+
+            assertEquals(CrossingState.FREE_TO_CROSS, contract.readCrossing(ctx, crossingId).getState());
+        }
+
+        @Test
+        void carRequestReleasedSuccessfully(){
+            crossing.setState(CrossingState.LOCKED);
+            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
+            ClientIdentity clientIdentity = mock(ClientIdentity.class);
+            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
+            when(clientIdentity.getMSPID()).thenReturn(msp);
+            when(clientIdentity.getId()).thenReturn(clientId);
+            lane = new Lane(laneIds[0], crossingId, 1, 1, false);
+            Request request = new Request(""+requestId, crossingId,laneIds[0], RequesterRole.CAR, true, false);
+            CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId,laneIds[0], crossingId);
+            RequestPrivateData privateData = new RequestPrivateData(""+requestId, laneIds[0], crossingId, clientId);
+            CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,laneIds[0], crossingId);
+
             MessageDigest digest;
             try {
                 digest = MessageDigest.getInstance("SHA-256");
             } catch (NoSuchAlgorithmException e) {
                 throw new RuntimeException();
             }
-            byte[] hash = digest.digest(privateData.toJSONString().getBytes(UTF_8));
-    
-            
-            lane.setOccupied(1);
-            verify(stub,never()).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestCompositeKey.toString(), request.toJSONString().getBytes(UTF_8));
-            verify(stub).putState(requestPrivateDataCompositeKey.toString(), hash);
+            byte[] hash = digest.digest(privateData.toBytes());
+
+            when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,laneIds[0], crossingId)).thenReturn(requestPrivateDataCompositeKey);
+            when(stub.createCompositeKey(Request.TYPE, ""+requestId,laneIds[0],crossingId)).thenReturn(requestCompositeKey);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+            when(stub.getState(requestCompositeKey.toString())).thenReturn(request.toBytes());
+            when(stub.getPrivateDataHash(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString())).thenReturn(hash);
+
+            contract.releaseCarPermission(ctx,requestId,crossingId,laneIds[0]);
+
+            verify(stub, never()).putState(eq(crossingCompKey.toString()), any());
+            lane.setOccupied(0);
+
+            verify(stub).putState(crossingLaneKey.toString(), lane.toBytes());
+            verify(stub).delState(laneCompositeKey.toString());
+            request.setActive(false);
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
         }
 
         @Test
-        void carRequestReleasedSuccessfully(){
+        void carRequestReleaseFreesItsSlot(){
+            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
+            ClientIdentity clientIdentity = mock(ClientIdentity.class);
+            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
+            when(clientIdentity.getMSPID()).thenReturn(msp);
+            when(clientIdentity.getId()).thenReturn(clientId);
+            Request request = new Request(""+requestId, crossingId,laneIds[0], RequesterRole.CAR, true, true, 1);
+            CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId,laneIds[0], crossingId);
+            RequestPrivateData privateData = new RequestPrivateData(""+requestId, laneIds[0], crossingId, clientId);
+            CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,laneIds[0], crossingId);
+            String slotKey = new CompositeKey(Lane.OCCUPANCY_TYPE, crossingId, laneIds[0], "1").toString();
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException();
+            }
+            byte[] hash = digest.digest(privateData.toBytes());
+
+            when(stub.createCompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,laneIds[0], crossingId)).thenReturn(requestPrivateDataCompositeKey);
+            when(stub.createCompositeKey(Request.TYPE, ""+requestId,laneIds[0],crossingId)).thenReturn(requestCompositeKey);
+            when(stub.getState(laneCompositeKey.toString())).thenReturn(lane.toBytes());
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+            when(stub.getState(requestCompositeKey.toString())).thenReturn(request.toBytes());
+            when(stub.getPrivateDataHash(RequestPrivateData.COLLECTION_NAME, requestPrivateDataCompositeKey.toString())).thenReturn(hash);
+            when(stub.getState(slotKey)).thenReturn(new SlotLease(requestId, 300).toBytes());
+
+            contract.releaseCarPermission(ctx,requestId,crossingId,laneIds[0]);
+
+            verify(stub).delState(slotKey);
+            verify(stub, never()).putState(eq(crossingLaneKey.toString()), any());
+            verify(stub, never()).putState(eq(crossingCompKey.toString()), any());
+            request.setActive(false);
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
+        }
+
+        @Test
+        void carRequestReleasedFromLegacyJsonRecords(){
             crossing.setState(CrossingState.LOCKED);
             when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
             ClientIdentity clientIdentity = mock(ClientIdentity.class);
@@ -832,7 +1069,7 @@ final class CrossingContractTest {
             when(clientIdentity.getMSPID()).thenReturn(msp);
             when(clientIdentity.getId()).thenReturn(clientId);
             lane = new Lane(laneIds[0], crossingId, 1, 1, false);
-            Request request = new Request(""+requestId, crossingId,laneIds[0], RequesterRole.CAR, true, false);
+            Request request = new Request(""+requestId, crossingId,laneIds[0], RequesterRole.CAR, true, true);
             CompositeKey requestCompositeKey = new CompositeKey(Request.TYPE, "" + requestId,laneIds[0], crossingId);
             RequestPrivateData privateData = new RequestPrivateData(""+requestId, laneIds[0], crossingId, clientId);
             CompositeKey requestPrivateDataCompositeKey = new CompositeKey(RequestPrivateData.COLLECTION_NAME, ""+requestId,laneIds[0], crossingId);
@@ -854,57 +1091,850 @@ final class CrossingContractTest {
 
             contract.releaseCarPermission(ctx,requestId,crossingId,laneIds[0]);
 
-            crossing.setState(CrossingState.FREE_TO_CROSS);
-            crossing.setValidUntil(60);
-            verify(stub).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
+            verify(stub, never()).putState(eq(crossingCompKey.toString()), any());
             lane.setOccupied(0);
-
-            verify(stub).putState(laneCompositeKey.toString(), lane.toJSONString().getBytes(UTF_8));
+            verify(stub).putState(crossingLaneKey.toString(), lane.toBytes());
+            verify(stub).delState(laneCompositeKey.toString());
             request.setActive(false);
-            verify(stub).putState(requestCompositeKey.toString(), request.toJSONString().getBytes(UTF_8));
+            verify(stub).putState(requestCompositeKey.toString(), request.toBytes());
         }
 
     }
-    
-    @Nested
-    class FreeToCrossRenewalTest{
-        private Crossing crossing;
-        private ClientIdentity clientIdentity;
 
+    @Nested
+    class CarLeaseTests {
         @BeforeEach
         void init(){
-            clientIdentity = mock(ClientIdentity.class);
-            crossing = new Crossing(crossingId, new String[] {}, CrossingState.FREE_TO_CROSS, false, 0);
-            String msp = "RailwayOrgMSP";
-            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
-            when(clientIdentity.getMSPID()).thenReturn(msp);
-            when(clientIdentity.getId()).thenReturn(railwayAdminId);
-            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, crossingId, new String[] {"01", "02"}, 2));
         }
-        
-        @Test
-        void freeToCrossRenewedSuccessfully(){
-            contract.renewFreeToCrossValidity(ctx, crossingId);
-            crossing.setValidUntil(60);
-            crossing.setState(CrossingState.FREE_TO_CROSS);
-            verify(stub,times(1)).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
+
+        private boolean carGranted(int vehicle){
+            return submit(SimulatedIdentity.vehicle(vehicle), "requestCarCrossing", c -> contract.requestCarCrossing(c, crossingId)).isGranted();
         }
+
         @Test
-        void freeToCrossRenewedDeniedClientNotRailwayAdmin(){
-            when(clientIdentity.getId()).thenReturn("NotRailwayAdmin");
-            Exception thrown = assertThrows(ChaincodeException.class, ()->{
-                contract.renewFreeToCrossValidity(ctx, crossingId);
-            });
-            assertTrue(thrown.getMessage().contains("Only the RailwayOrg's Admin"));
-            crossing.setValidUntil(60);
-            crossing.setState(CrossingState.FREE_TO_CROSS);
-            verify(stub,never()).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
-        }
+        void expiredLeasesStopOccupyingTheLanes(){
+            for (int i = 0; i < 4; i++) {
+                assertTrue(carGranted(i));
+            }
+            assertFalse(carGranted(4));
+
+            clock += 301;
+
+            assertEquals(4, evaluate(c -> contract.readCrossingView(c, crossingId)).getFreeCapacity());
+            for (int i = 5; i < 9; i++) {
+                assertTrue(carGranted(i));
+            }
+        }
+    }
+    
+    @Nested
+    class BatchRequestTests {
+        @BeforeEach
+        void init(){
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, crossingId, new String[] {"01", "02"}, 2));
+        }
+
+        private Request[] requestBatch(int count, boolean allOrNothing){
+            return submit(SimulatedIdentity.vehicle(0), "requestCarCrossingBatch", c -> contract.requestCarCrossingBatch(c, crossingId, count, allOrNothing));
+        }
+
+        private int occupied(){
+            return evaluate(c -> contract.readLane(c, "01", crossingId).getOccupied()
+                    + contract.readLane(c, "02", crossingId).getOccupied());
+        }
+
+        @Test
+        void batchGrantsAsManyAsFit(){
+            Request[] requests = requestBatch(5, false);
+
+            assertEquals(5, requests.length);
+            assertEquals(4, Arrays.stream(requests).filter(Request::isGranted).count());
+            assertEquals(5, Arrays.stream(requests).map(Request::getId).distinct().count());
+            assertEquals(4, occupied());
+        }
+
+        @Test
+        void allOrNothingBatchDeniedWhenItDoesNotFit(){
+            Request[] requests = requestBatch(5, true);
+
+            assertEquals(0, Arrays.stream(requests).filter(Request::isGranted).count());
+            assertEquals(0, occupied());
+        }
+
+        @Test
+        void batchReleaseFreesEveryLane(){
+            Request[] requests = requestBatch(4, true);
+
+            submit(SimulatedIdentity.vehicle(0), "releaseCarPermissionsBatch", c -> {
+                contract.releaseCarPermissionsBatch(c, crossingId,
+                        Arrays.stream(requests).map(Request::getId).toArray(String[]::new),
+                        Arrays.stream(requests).map(Request::getLaneId).toArray(String[]::new));
+                return null;
+            });
+
+            assertEquals(0, occupied());
+        }
+
+        @Test
+        void batchReleaseByAnotherVehicleIsRejected(){
+            Request[] requests = requestBatch(2, true);
+
+            SimulatedStub release = newTransaction(SimulatedIdentity.vehicle(1), "releaseCarPermissionsBatch");
+            assertThrows(ChaincodeException.class, () -> ledger.invoke(contract, release, c -> {
+                contract.releaseCarPermissionsBatch(c, crossingId,
+                        Arrays.stream(requests).map(Request::getId).toArray(String[]::new),
+                        Arrays.stream(requests).map(Request::getLaneId).toArray(String[]::new));
+                return null;
+            }));
+
+            assertEquals(2, occupied());
+        }
+
+        @Test
+        void emptyBatchReleaseIsRejected(){
+            SimulatedStub release = newTransaction(SimulatedIdentity.vehicle(0), "releaseCarPermissionsBatch");
+            Exception thrown = assertThrows(ChaincodeException.class, () -> ledger.invoke(contract, release, c -> {
+                contract.releaseCarPermissionsBatch(c, crossingId, new String[] {}, new String[] {});
+                return null;
+            }));
+
+            assertTrue(thrown.getMessage().contains("between 1 and"));
+        }
+
+        @Test
+        void batchEmitsOneEventWithEveryRequest(){
+            SimulatedStub batch = newTransaction(SimulatedIdentity.vehicle(0), "requestCarCrossingBatch");
+            Request[] requests = ledger.invoke(contract, batch, c -> contract.requestCarCrossingBatch(c, crossingId, 5, false));
+
+            assertEquals(CrossingEvent.GRANTED, batch.getEvent().getEventName());
+            JSONObject payload = new JSONObject(batch.getEvent().getPayload().toStringUtf8());
+            assertEquals(crossingId, payload.getString("crossingId"));
+            assertEquals(CrossingState.FREE_TO_CROSS.name(), payload.getString("storedState"));
+            JSONArray events = payload.getJSONArray("requests");
+            assertEquals(5, events.length());
+            for (int i = 0; i < requests.length; i++) {
+                assertEquals(requests[i].getId(), events.getJSONObject(i).getString("id"));
+                assertEquals(requests[i].isGranted(), events.getJSONObject(i).getBoolean("granted"));
+                assertEquals(requests[i].isGranted(), events.getJSONObject(i).has("slot"));
+            }
+        }
+
+        @Test
+        void allOrNothingBatchGrantedWhenItFits(){
+            Request[] requests = requestBatch(4, true);
+
+            assertEquals(4, Arrays.stream(requests).filter(Request::isGranted).count());
+            assertEquals(4, occupied());
+        }
+    }
+
+    @Nested
+    class CrossingEventTests {
+        @BeforeEach
+        void init(){
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, crossingId, new String[] {"01", "02"}, 2));
+        }
+
+        @Test
+        void trainEventsReportLaneOccupancyAndDerivedState(){
+            submit(SimulatedIdentity.vehicle(0), "requestCarCrossing", c -> contract.requestCarCrossing(c, crossingId));
+
+            SimulatedStub train = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainCrossing");
+            Request trainRequest = ledger.invoke(contract, train, c -> contract.requestTrainCrossing(c, crossingId));
+            assertEquals(LedgerSimulator.ValidationCode.VALID, ledger.commit(train));
+            JSONObject denied = new JSONObject(train.getEvent().getPayload().toStringUtf8());
+            assertEquals(CrossingEvent.DENIED, train.getEvent().getEventName());
+            assertEquals(CrossingState.LOCKED.name(), denied.getString("state"));
+            assertEquals(1, occupiedInEvent(denied));
+
+            SimulatedStub release = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainPermission");
+            ledger.invoke(contract, release, c -> {
+                contract.releaseTrainPermission(c, trainRequest.getId(), crossingId);
+                return null;
+            });
+            JSONObject released = new JSONObject(release.getEvent().getPayload().toStringUtf8());
+            assertEquals(CrossingState.FREE_TO_CROSS.name(), released.getString("storedState"));
+            assertEquals(CrossingState.LOCKED.name(), released.getString("state"));
+            assertEquals(1, occupiedInEvent(released));
+        }
+
+        private int occupiedInEvent(JSONObject payload){
+            JSONArray lanes = payload.getJSONArray("lanes");
+            int occupied = 0;
+            for (int i = 0; i < lanes.length(); i++) {
+                occupied += lanes.getJSONObject(i).getInt("occupied");
+            }
+            return occupied;
+        }
+    }
+
+    @Nested
+    class LaneMigrationTests {
+        private final String[] laneIds = {"01", "02", "03"};
+        @BeforeEach
+        void init(){
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, crossingId, laneIds, 2));
+
+            SimulatedStub downgrade = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "downgrade");
+            ledger.endorse(downgrade, () -> {
+                for (String laneId : laneIds) {
+                    String laneKey = downgrade.createCompositeKey(Lane.CROSSING_LANE_TYPE, crossingId, laneId).toString();
+                    downgrade.putState(downgrade.createCompositeKey(Lane.TYPE, laneId, crossingId).toString(), downgrade.getState(laneKey));
+                    downgrade.delState(laneKey);
+                }
+                return null;
+            });
+            assertEquals(LedgerSimulator.ValidationCode.VALID, ledger.commit(downgrade));
+        }
+
+        private int migrate(int maxLanes){
+            return submit(SimulatedIdentity.RAILWAY_ADMIN, "migrateLanes", c -> contract.migrateLanes(c, maxLanes));
+        }
+
+        private int committedKeys(String objectType){
+            String prefix = new CompositeKey(objectType).toString();
+            return ledger.getCommittedRange(prefix, prefix + new String(Character.toChars(Character.MAX_CODE_POINT))).size();
+        }
+
+        @Test
+        void legacyLanesAreStillGranted(){
+            Request granted = submit(SimulatedIdentity.vehicle(0), "requestCarCrossing", c -> contract.requestCarCrossing(c, crossingId));
+
+            assertTrue(granted.isGranted());
+        }
+
+        @Test
+        void migrationMovesLanesInChunks(){
+            assertEquals(3, committedKeys(Lane.TYPE));
+
+            assertEquals(2, migrate(2));
+            assertEquals(1, migrate(2));
+            assertEquals(0, migrate(2));
+
+            assertEquals(0, committedKeys(Lane.TYPE));
+            assertEquals(3, committedKeys(Lane.CROSSING_LANE_TYPE));
+            assertEquals(2, evaluate(c -> contract.readLane(c, "03", crossingId)).getCapacity());
+        }
+
+        @Test
+        void migrationChunkIsBounded(){
+            SimulatedStub migrate = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "migrateLanes");
+            assertThrows(ChaincodeException.class, () -> ledger.invoke(contract, migrate, c -> contract.migrateLanes(c, 0)));
+        }
+    }
+
+    @Nested
+    class ListingTests {
+        @BeforeEach
+        void init(){
+            for (int i = 0; i < 5; i++) {
+                String id = "crossing" + i;
+                submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, id, new String[] {"01"}, 2));
+            }
+        }
+
+        private Request requestCar(SimulatedIdentity vehicle){
+            return submit(vehicle, "requestCarCrossing", c -> contract.requestCarCrossing(c, "crossing0"));
+        }
+
+        private int activeRequests(String crossingId){
+            return evaluate(c -> contract.countActiveRequests(c, crossingId));
+        }
+
+        @Test
+        void crossingsAreListedPageByPage(){
+            List<String> listed = new ArrayList<>();
+            String bookmark = "";
+            int pages = 0;
+            do {
+                final String current = bookmark;
+                CrossingPage page = evaluate(c -> contract.listCrossings(c, 2, current));
+                Arrays.stream(page.getCrossings()).map(Crossing::getId).forEach(listed::add);
+                bookmark = page.getBookmark();
+                pages++;
+            } while (!bookmark.isEmpty());
+
+            assertEquals(3, pages);
+            assertEquals(Arrays.asList("crossing0", "crossing1", "crossing2", "crossing3", "crossing4"), listed);
+        }
+
+        @Test
+        void requestsAreListedWithActiveFilter(){
+            Request first = requestCar(SimulatedIdentity.vehicle(0));
+            requestCar(SimulatedIdentity.vehicle(1));
+            requestCar(SimulatedIdentity.vehicle(2));
+            submit(SimulatedIdentity.vehicle(0), "releaseCarPermission", c -> {
+                contract.releaseCarPermission(c, first.getId(), "crossing0", first.getLaneId());
+                return null;
+            });
+
+            RequestPage all = evaluate(c -> contract.listRequests(c, "crossing0", false, 10, ""));
+            RequestPage active = evaluate(c -> contract.listRequests(c, "crossing0", true, 10, ""));
+
+            assertEquals(3, all.getRequests().length);
+            assertEquals("", all.getBookmark());
+            assertEquals(1, active.getRequests().length);
+            assertTrue(Arrays.stream(active.getRequests()).allMatch(Request::isActive));
+            assertEquals(0, evaluate(c -> contract.listRequests(c, "crossing1", false, 10, "")).getRequests().length);
+        }
+
+        @Test
+        void expiredPermissionsAreNotActive(){
+            requestCar(SimulatedIdentity.vehicle(0));
+            requestCar(SimulatedIdentity.vehicle(1));
+            assertEquals(2, activeRequests("crossing0"));
+
+            clock += 301;
+
+            assertEquals(0, activeRequests("crossing0"));
+            assertEquals(0, evaluate(c -> contract.listRequests(c, "crossing0", true, 10, "")).getRequests().length);
+            assertEquals(2, evaluate(c -> contract.listRequests(c, "crossing0", false, 10, "")).getRequests().length);
+        }
+
+        @Test
+        void activeRequestsAreCountedFromTheirIndex(){
+            requestCar(SimulatedIdentity.vehicle(0));
+            requestCar(SimulatedIdentity.vehicle(1));
+            Request denied = requestCar(SimulatedIdentity.vehicle(2));
+            assertFalse(denied.isGranted());
+            assertEquals(2, activeRequests("crossing0"));
+
+            Request trainRequest = submit(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainCrossing", c -> contract.requestTrainCrossing(c, "crossing1"));
+            assertEquals(1, activeRequests("crossing1"));
+
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainPermission", c -> {
+                contract.releaseTrainPermission(c, trainRequest.getId(), "crossing1");
+                return null;
+            });
+            assertEquals(0, activeRequests("crossing1"));
+        }
+
+        @Test
+        void crossingViewMatchesTheSingleReads(){
+            requestCar(SimulatedIdentity.vehicle(0));
+
+            CrossingView view = evaluate(c -> contract.readCrossingView(c, "crossing0"));
+
+            assertEquals(evaluate(c -> contract.readCrossing(c, "crossing0")), view.getCrossing());
+            assertEquals(CrossingState.LOCKED, view.getCrossing().getState());
+            assertEquals(1, view.getLanes().length);
+            assertEquals(evaluate(c -> contract.readLane(c, "01", "crossing0")), view.getLanes()[0]);
+            assertEquals(1, view.getFreeCapacity());
+        }
+
+        @Test
+        void crossingViewsReadSeveralCrossings(){
+            requestCar(SimulatedIdentity.vehicle(0));
+
+            CrossingView[] views = evaluate(c -> contract.readCrossingViews(c, new String[] {"crossing0", "crossing1", "crossing2"}));
+
+            assertEquals(3, views.length);
+            assertEquals("crossing1", views[1].getCrossing().getId());
+            assertEquals(1, views[0].getFreeCapacity());
+            assertEquals(2, views[1].getFreeCapacity());
+            assertEquals(CrossingState.FREE_TO_CROSS, views[2].getCrossing().getState());
+            assertThrows(ChaincodeException.class, () -> evaluate(c -> contract.readCrossingViews(c, new String[] {"crossing0", "missing"})));
+        }
+
+        @Test
+        void pageSizeIsBounded(){
+            assertThrows(ChaincodeException.class, () -> evaluate(c -> contract.listCrossings(c, 0, "")));
+            assertThrows(ChaincodeException.class, () -> evaluate(c -> contract.listCrossings(c, 501, "")));
+        }
+    }
+
+    @Nested
+    class TrainCorridorTests {
+        @BeforeEach
+        void init(){
+            for (int i = 0; i < 3; i++) {
+                String id = "crossing" + i;
+                submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, id, new String[] {"01"}, 2));
+            }
+            submit(SimulatedIdentity.vehicle(0), "requestCarCrossing", c -> contract.requestCarCrossing(c, "crossing1"));
+        }
+
+        private CrossingState state(String crossingId){
+            return evaluate(c -> contract.readCrossing(c, crossingId)).getState();
+        }
+
+        private Request[] requestCorridor(){
+            SimulatedStub stub = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainCorridor");
+            Request[] requests = ledger.invoke(contract, stub, c -> contract.requestTrainCorridor(c, new String[] {"crossing2", "crossing0", "crossing1"}));
+            assertEquals(LedgerSimulator.ValidationCode.VALID, ledger.commit(stub));
+            assertEquals(CrossingEvent.DENIED, stub.getEvent().getEventName());
+            JSONArray crossings = new JSONObject(stub.getEvent().getPayload().toStringUtf8()).getJSONArray("crossings");
+            assertEquals(3, crossings.length());
+            assertEquals("crossing0", crossings.getJSONObject(0).getString("crossingId"));
+            return requests;
+        }
+
+        @Test
+        void corridorLocksEveryCrossing(){
+            Request[] requests = requestCorridor();
+
+            assertEquals(3, requests.length);
+            assertEquals("crossing2", requests[0].getCrossingId());
+            assertTrue(requests[0].isGranted());
+            assertTrue(requests[1].isGranted());
+            assertFalse(requests[2].isGranted());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(CrossingState.LOCKED, state("crossing" + i));
+            }
+        }
+
+        @Test
+        void corridorIsReleasedAtOnce(){
+            String corridorId = requestCorridor()[0].getId().split(":")[0];
+
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainCorridor", c -> {
+                contract.releaseTrainCorridor(c, corridorId);
+                return null;
+            });
+
+            assertEquals(CrossingState.FREE_TO_CROSS, state("crossing0"));
+            assertEquals(CrossingState.FREE_TO_CROSS, state("crossing2"));
+            assertEquals(CrossingState.LOCKED, state("crossing1"));
+            assertThrows(ChaincodeException.class, () -> submit(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainCorridor", c -> {
+                contract.releaseTrainCorridor(c, corridorId);
+                return null;
+            }));
+        }
+
+        @Test
+        void corridorIsOnlyReleasedByItsRequester(){
+            String corridorId = requestCorridor()[0].getId().split(":")[0];
+
+            assertThrows(ChaincodeException.class, () -> submit(SimulatedIdentity.RAILWAY_OPERATOR, "releaseTrainCorridor", c -> {
+                contract.releaseTrainCorridor(c, corridorId);
+                return null;
+            }));
+            assertEquals(CrossingState.LOCKED, state("crossing0"));
+        }
+
+        @Test
+        void corridorPassesEachCrossingOnce(){
+            assertThrows(ChaincodeException.class, () -> submit(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainCorridor",
+                    c -> contract.requestTrainCorridor(c, new String[] {"crossing0", "crossing0"})));
+        }
+    }
+
+    @Nested
+    class TrainWindowTests {
+        @BeforeEach
+        void init(){
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, crossingId, new String[] {"01"}, 2));
+        }
+
+        private Request requestWindow(long start, long end){
+            return submit(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainWindow", c -> contract.requestTrainWindow(c, crossingId, start, end));
+        }
+
+        private boolean carGranted(){
+            return submit(SimulatedIdentity.vehicle(0), "requestCarCrossing", c -> contract.requestCarCrossing(c, crossingId)).isGranted();
+        }
+
+        @Test
+        void crossingIdsContainingTheWindowKeySeparatorAreRejected(){
+            SimulatedStub create = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing");
+            assertThrows(ChaincodeException.class, () -> ledger.invoke(contract, create,
+                    c -> contract.createCrossing(c, crossingId + "\u0001x", new String[] {"01"}, 2)));
+            SimulatedStub window = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainWindow");
+            assertThrows(ChaincodeException.class, () -> ledger.invoke(contract, window,
+                    c -> contract.requestTrainWindow(c, crossingId + "\u0001x", 2000, 2300)));
+        }
+
+        @Test
+        void carsAreDeniedLeasesRunningIntoAWindow(){
+            Request window = requestWindow(2000, 2300);
+
+            assertTrue(window.isGranted());
+            assertEquals(2300, window.getLeaseExpiry());
+            assertTrue(carGranted());
+            clock = 1800;
+            assertFalse(carGranted());
+            clock = 2200;
+            assertFalse(carGranted());
+            clock = 2301;
+            assertTrue(carGranted());
+        }
+
+        @Test
+        void windowsAreDeniedWhileCarLeasesRunIntoThem(){
+            assertTrue(carGranted());
+
+            assertFalse(requestWindow(1100, 1200).isGranted());
+            assertTrue(requestWindow(1400, 1500).isGranted());
+        }
+
+        @Test
+        void releasedWindowsNoLongerDenyCars(){
+            Request window = requestWindow(1100, 1200);
+            assertFalse(carGranted());
+
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainWindow", c -> {
+                contract.releaseTrainWindow(c, window.getId(), crossingId);
+                return null;
+            });
+
+            assertTrue(carGranted());
+        }
+
+        @Test
+        void readsReportCrossingsLockedForAWindow(){
+            requestWindow(2000, 2300);
+
+            assertEquals(CrossingState.FREE_TO_CROSS, evaluate(c -> contract.readCrossing(c, crossingId)).getState());
+            assertEquals(2, evaluate(c -> contract.readCrossingView(c, crossingId)).getFreeCapacity());
+            clock = 2100;
+            assertEquals(CrossingState.LOCKED, evaluate(c -> contract.readCrossing(c, crossingId)).getState());
+            CrossingView view = evaluate(c -> contract.readCrossingView(c, crossingId));
+            assertEquals(CrossingState.LOCKED, view.getCrossing().getState());
+            assertEquals(0, view.getFreeCapacity());
+            clock = 2301;
+            assertEquals(CrossingState.FREE_TO_CROSS, evaluate(c -> contract.readCrossing(c, crossingId)).getState());
+            assertEquals(2, evaluate(c -> contract.readCrossingView(c, crossingId)).getFreeCapacity());
+        }
+
+        private void releaseTrainPermission(String requestId){
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainPermission", c -> {
+                contract.releaseTrainPermission(c, requestId, crossingId);
+                return null;
+            });
+        }
+
+        @Test
+        void trainCrossingRequestsAreNotReleasedAsWindows(){
+            Request train = submit(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainCrossing", c -> contract.requestTrainCrossing(c, crossingId));
+
+            SimulatedStub release = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainWindow");
+            assertThrows(ChaincodeException.class, () -> ledger.invoke(contract, release, c -> {
+                contract.releaseTrainWindow(c, train.getId(), crossingId);
+                return null;
+            }));
+            assertTrue(evaluate(c -> contract.readCrossing(c, crossingId)).isPriorityLock());
+        }
+
+        @Test
+        void windowsAreNotReleasedAsTrainCrossings(){
+            Request train = submit(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainCrossing", c -> contract.requestTrainCrossing(c, crossingId));
+            Request window = requestWindow(1100, 1200);
+
+            assertThrows(ChaincodeException.class, () -> releaseTrainPermission(window.getId()));
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainWindow", c -> {
+                contract.releaseTrainWindow(c, window.getId(), crossingId);
+                return null;
+            });
+            assertThrows(ChaincodeException.class, () -> releaseTrainPermission(window.getId()));
+
+            assertTrue(evaluate(c -> contract.readCrossing(c, crossingId)).isPriorityLock());
+            Request[] active = evaluate(c -> contract.listRequests(c, crossingId, true, 10, "")).getRequests();
+            assertEquals(1, active.length);
+            assertEquals(train.getId(), active[0].getId());
+        }
+
+        @Test
+        void windowsAreBounded(){
+            assertThrows(ChaincodeException.class, () -> requestWindow(900, 1000));
+            assertThrows(ChaincodeException.class, () -> requestWindow(1100, 1100));
+            assertThrows(ChaincodeException.class, () -> requestWindow(1100, 2001));
+        }
+    }
+
+    @Nested
+    class WaitlistTests {
+        @BeforeEach
+        void init(){
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, crossingId, new String[] {"01"}, 1));
+        }
+
+        private Request requestCar(int vehicle){
+            return submit(SimulatedIdentity.vehicle(vehicle), "requestCarCrossing", c -> contract.requestCarCrossing(c, crossingId));
+        }
+
+        private void releaseCar(int vehicle, String requestId, String laneId){
+            submit(SimulatedIdentity.vehicle(vehicle), "releaseCarPermission", c -> {
+                contract.releaseCarPermission(c, requestId, crossingId, laneId);
+                return null;
+            });
+        }
+
+        private Request[] serveWaitlist(){
+            return submit(SimulatedIdentity.vehicle(0), "serveWaitlist", c -> contract.serveWaitlist(c, crossingId));
+        }
+
+        @Test
+        void queuedCarsAreGrantedInOrderWhenServed(){
+            Request first = requestCar(0);
+            Request second = requestCar(1);
+            Request third = requestCar(2);
+            assertTrue(first.isGranted());
+            assertTrue(second.isQueued());
+            assertTrue(third.isQueued());
+            assertEquals(0, serveWaitlist().length);
+
+            releaseCar(0, first.getId(), first.getLaneId());
+            Request[] granted = serveWaitlist();
+
+            assertEquals(1, granted.length);
+            assertEquals(second.getId(), granted[0].getId());
+            assertTrue(granted[0].isGranted());
+
+            releaseCar(1, second.getId(), granted[0].getLaneId());
+            granted = serveWaitlist();
+
+            assertEquals(1, granted.length);
+            assertEquals(third.getId(), granted[0].getId());
+        }
+
+        @Test
+        void servingReadsNoPrivateData(){
+            Request first = requestCar(0);
+            Request second = requestCar(1);
+            releaseCar(0, first.getId(), first.getLaneId());
+
+            SimulatedStub serve = newTransaction(SimulatedIdentity.vehicle(0), "serveWaitlist");
+            Request[] granted = ledger.invoke(contract, serve, c -> contract.serveWaitlist(c, crossingId));
+            assertEquals(LedgerSimulator.ValidationCode.VALID, ledger.commit(serve));
+
+            assertEquals(second.getId(), granted[0].getId());
+            assertTrue(serve.getPrivateReadSet().isEmpty());
+            assertTrue(serve.getPrivateWriteSet().isEmpty());
+        }
+
+        @Test
+        void servedPermissionIsReleasedOnlyByItsRequester(){
+            Request first = requestCar(0);
+            requestCar(1);
+            releaseCar(0, first.getId(), first.getLaneId());
+            Request granted = serveWaitlist()[0];
+
+            SimulatedStub stranger = newTransaction(SimulatedIdentity.vehicle(0), "releaseCarPermission");
+            assertThrows(ChaincodeException.class, () -> ledger.invoke(contract, stranger, c -> {
+                contract.releaseCarPermission(c, granted.getId(), crossingId, granted.getLaneId());
+                return null;
+            }));
+            releaseCar(1, granted.getId(), granted.getLaneId());
+        }
+
+        /** Plays the off-chain service of the railway, which serves the waitlist after every release it observes. */
+        private void serveAfterRelease(SimulatedStub committed){
+            if (CrossingEvent.RELEASED.equals(committed.getEvent().getEventName())) {
+                String released = new JSONObject(committed.getEvent().getPayload().toStringUtf8()).getString("crossingId");
+                submit(SimulatedIdentity.RAILWAY_ADMIN, "serveWaitlist", c -> contract.serveWaitlist(c, released));
+            }
+        }
+
+        @Test
+        void railwayServiceGrantsQueuedCarsAfterReleases(){
+            Request first = requestCar(0);
+            Request queued = requestCar(1);
+            assertTrue(queued.isQueued());
+
+            SimulatedStub release = newTransaction(SimulatedIdentity.vehicle(0), "releaseCarPermission");
+            ledger.invoke(contract, release, c -> {
+                contract.releaseCarPermission(c, first.getId(), crossingId, first.getLaneId());
+                return null;
+            });
+            assertEquals(LedgerSimulator.ValidationCode.VALID, ledger.commit(release));
+            serveAfterRelease(release);
+
+            Request granted = evaluate(c -> contract.listRequests(c, crossingId, true, 10, "")).getRequests()[0];
+            assertEquals(queued.getId(), granted.getId());
+            assertTrue(granted.isGranted());
+            releaseCar(1, granted.getId(), granted.getLaneId());
+        }
+
+        @Test
+        void releasesDoNotServeTheWaitlist(){
+            Request first = requestCar(0);
+            Request second = requestCar(1);
+
+            releaseCar(0, first.getId(), first.getLaneId());
+
+            byte[] queued = ledger.getCommittedState(new CompositeKey(Request.TYPE, second.getId(), "N/A", crossingId).toString());
+            assertTrue(Request.fromBytes(queued).isQueued());
+        }
+
+        @Test
+        void concurrentReleasesAndQueueingDoNotConflict(){
+            String busyCrossing = "crossing2";
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, busyCrossing, new String[] {"01", "02"}, 1));
+            Request[] held = new Request[3];
+            for (int vehicle = 0; vehicle < held.length; vehicle++) {
+                held[vehicle] = submit(SimulatedIdentity.vehicle(vehicle), "requestCarCrossing", c -> contract.requestCarCrossing(c, busyCrossing));
+            }
+            assertTrue(held[0].isGranted());
+            assertTrue(held[1].isGranted());
+            assertTrue(held[2].isQueued());
+
+            Instant now = Instant.ofEpochSecond(clock++);
+            List<SimulatedStub> block = new ArrayList<>();
+            SimulatedStub request = ledger.newTransaction(SimulatedIdentity.vehicle(3), now, "requestCarCrossing");
+            Request late = ledger.invoke(contract, request, c -> contract.requestCarCrossing(c, busyCrossing));
+            block.add(request);
+            for (int vehicle = 0; vehicle < 2; vehicle++) {
+                Request granted = held[vehicle];
+                SimulatedStub release = ledger.newTransaction(SimulatedIdentity.vehicle(vehicle), now, "releaseCarPermission");
+                ledger.invoke(contract, release, c -> {
+                    contract.releaseCarPermission(c, granted.getId(), busyCrossing, granted.getLaneId());
+                    return null;
+                });
+                block.add(release);
+            }
+
+            assertTrue(late.isQueued());
+            assertEquals(Collections.nCopies(3, LedgerSimulator.ValidationCode.VALID), ledger.commit(block));
+
+            Request[] granted = submit(SimulatedIdentity.vehicle(0), "serveWaitlist", c -> contract.serveWaitlist(c, busyCrossing));
+            assertEquals(2, granted.length);
+            assertEquals(held[2].getId(), granted[0].getId());
+            assertEquals(late.getId(), granted[1].getId());
+        }
+
+        @Test
+        void carsQueuedLongerThanALeaseAreDropped(){
+            Request first = requestCar(0);
+            Request second = requestCar(1);
+            clock += 300;
+
+            releaseCar(0, first.getId(), first.getLaneId());
+
+            assertEquals(0, serveWaitlist().length);
+            assertTrue(requestCar(2).isGranted());
+            byte[] dropped = ledger.getCommittedState(new CompositeKey(Request.TYPE, second.getId(), "N/A", crossingId).toString());
+            assertFalse(Request.fromBytes(dropped).isQueued());
+        }
+
+        @Test
+        void queuedCarsAreGrantedAfterATrainRelease(){
+            Request train = submit(SimulatedIdentity.RAILWAY_ADMIN, "requestTrainCrossing", c -> contract.requestTrainCrossing(c, crossingId));
+            Request car = requestCar(0);
+            assertFalse(car.isGranted());
+            assertEquals(0, serveWaitlist().length);
+
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "releaseTrainPermission", c -> {
+                contract.releaseTrainPermission(c, train.getId(), crossingId);
+                return null;
+            });
+            Request[] granted = serveWaitlist();
+
+            assertEquals(1, granted.length);
+            assertEquals(car.getId(), granted[0].getId());
+            assertTrue(granted[0].isGranted());
+        }
+    }
+
+    @Nested
+    class MetricsTests {
+        @BeforeEach
+        void init(){
+            submit(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing", c -> contract.createCrossing(c, crossingId, new String[] {"01", "02"}, 2));
+        }
+
+        private JSONObject metrics(){
+            SimulatedStub stub = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "getMetrics");
+            return new JSONObject(ledger.invoke(contract, stub, contract::getMetrics));
+        }
+
+        @Test
+        void transactionsAreMeasuredPerFunction(){
+            SimulatedStub request = newTransaction(SimulatedIdentity.vehicle(0), "requestCarCrossing");
+            ledger.invoke(contract, request, c -> contract.requestCarCrossing(c, crossingId));
+
+            JSONObject metrics = metrics();
+
+            JSONObject create = metrics.getJSONObject("createCrossing");
+            assertEquals(1, create.getJSONObject("latencyMicros").getLong("count"));
+            assertEquals(3, create.getJSONObject("putState").getLong("max"));
+            JSONObject car = metrics.getJSONObject("requestCarCrossing");
+            assertEquals(1, car.getJSONObject("latencyMicros").getLong("count"));
+            assertTrue(car.getJSONObject("getState").getLong("max") > 0);
+            assertTrue(car.getJSONObject("peerReads").getLong("max") > 0);
+            assertTrue(car.getJSONObject("peerReads").getLong("max") <= car.getJSONObject("getState").getLong("max"));
+            assertTrue(car.getJSONObject("peerWrites").getLong("max") > 0);
+            assertTrue(car.getJSONObject("bytesRead").getLong("max") > 0);
+            assertTrue(car.getJSONObject("bytesWritten").getLong("max") > 0);
+            assertEquals(0, car.getJSONObject("failures").length());
+        }
+
+        private Throwable failOnNewThread(SimulatedStub stub, Function<Context, ?> function) throws InterruptedException {
+            AtomicReference<Throwable> thrown = new AtomicReference<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    ledger.invoke(contract, stub, function);
+                } catch (RuntimeException e) {
+                    thrown.set(e);
+                }
+            });
+            thread.start();
+            thread.join();
+            return thrown.get();
+        }
+
+        @Test
+        void failuresAreCountedByReason() throws InterruptedException {
+            SimulatedStub denied = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "requestCarCrossing");
+            assertTrue(failOnNewThread(denied, c -> contract.requestCarCrossing(c, crossingId)) instanceof ChaincodeException);
+            SimulatedStub missing = newTransaction(SimulatedIdentity.vehicle(0), "requestCarCrossing");
+            assertTrue(failOnNewThread(missing, c -> contract.requestCarCrossing(c, "missing")) instanceof ChaincodeException);
+            SimulatedStub batch = newTransaction(SimulatedIdentity.vehicle(0), "requestCarCrossingBatch");
+            assertTrue(failOnNewThread(batch, c -> contract.requestCarCrossingBatch(c, crossingId, 0, false)) instanceof ChaincodeException);
+
+            JSONObject metrics = metrics();
+
+            JSONObject failures = metrics.getJSONObject("requestCarCrossing").getJSONObject("failures");
+            assertEquals(1, failures.getLong(TransactionMetrics.ACCESS_DENIED));
+            assertEquals(1, failures.getLong(TransactionMetrics.NOT_FOUND));
+            assertEquals(0, metrics.getJSONObject("requestCarCrossing").getJSONObject("latencyMicros").getLong("count"));
+            assertEquals(1, metrics.getJSONObject("requestCarCrossingBatch").getJSONObject("failures")
+                    .getLong(TransactionMetrics.ERROR));
+        }
+    }
+
+    @Nested
+    class FreeToCrossRenewalTest{
+        private Crossing crossing;
+        private ClientIdentity clientIdentity;
+
+        @BeforeEach
+        void init(){
+            clientIdentity = mock(ClientIdentity.class);
+            crossing = new Crossing(crossingId, new String[] {}, CrossingState.FREE_TO_CROSS, false, 0);
+            String msp = "RailwayOrgMSP";
+            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
+            when(clientIdentity.getMSPID()).thenReturn(msp);
+            when(clientIdentity.getId()).thenReturn(railwayAdminId);
+            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+        }
+        
+        @Test
+        void freeToCrossRenewedSuccessfully(){
+            contract.renewFreeToCrossValidity(ctx, crossingId);
+            crossing.setValidUntil(60);
+            crossing.setState(CrossingState.FREE_TO_CROSS);
+            verify(stub,times(1)).putState(crossingCompKey.toString(), crossing.toBytes());
+            verify(stub).setEvent(eq(CrossingEvent.RENEWED), any());
+        }
+        @Test
+        void freeToCrossRenewedDeniedClientNotRailwayAdmin(){
+            when(clientIdentity.getId()).thenReturn("NotRailwayAdmin");
+            Exception thrown = assertThrows(ChaincodeException.class, ()->{
+                contract.renewFreeToCrossValidity(ctx, crossingId);
+            });
+            assertTrue(thrown.getMessage().contains("Only the RailwayOrg's Admin"));
+            crossing.setValidUntil(60);
+            crossing.setState(CrossingState.FREE_TO_CROSS);
+            verify(stub,never()).putState(crossingCompKey.toString(), crossing.toBytes());
+            verify(stub, never()).setEvent(any(), any());
+        }
         @Test
         void freeToCrossRenewedDeniedCrossingLocked(){
             crossing.setState(CrossingState.LOCKED);
-            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toJSONString().getBytes(UTF_8));
+            crossing.setPriorityLock(true);
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
             when(clientIdentity.getId()).thenReturn(railwayAdminId);
             Exception thrown = assertThrows(ChaincodeException.class, ()->{
                 contract.renewFreeToCrossValidity(ctx, crossingId);
@@ -912,9 +1942,89 @@ final class CrossingContractTest {
             assertTrue(thrown.getMessage().contains("must be in FREE_TO_CROSS"));
             crossing.setValidUntil(60);
             crossing.setState(CrossingState.FREE_TO_CROSS);
-            verify(stub,never()).putState(crossingCompKey.toString(), crossing.toJSONString().getBytes(UTF_8));
+            verify(stub,never()).putState(crossingCompKey.toString(), crossing.toBytes());
+        }
+
+        @Test
+        void batchRenewsFreeCrossingsAndReportsSkippedOnes(){
+            CompositeKey lockedKey = new CompositeKey(Crossing.TYPE, "002");
+            CompositeKey missingKey = new CompositeKey(Crossing.TYPE, "003");
+            when(stub.createCompositeKey(Crossing.TYPE, "002")).thenReturn(lockedKey);
+            when(stub.createCompositeKey(Crossing.TYPE, "003")).thenReturn(missingKey);
+            Crossing locked = new Crossing("002", new String[] {}, CrossingState.LOCKED, true, 0);
+            when(stub.getState(lockedKey.toString())).thenReturn(locked.toBytes());
+
+            ValidityRenewal renewal = contract.renewFreeToCrossValidityBatch(ctx,
+                    new String[] { crossingId, "002", "003", crossingId });
+
+            assertEquals(1, renewal.getRenewed().length);
+            assertEquals(60, renewal.getRenewed()[0].getValidUntil());
+            assertArrayEquals(new String[] { "002", "003" }, renewal.getSkipped());
+            crossing.setValidUntil(60);
+            verify(stub,times(1)).putState(crossingCompKey.toString(), crossing.toBytes());
+            verify(stub,never()).putState(eq(lockedKey.toString()), any());
+            verify(stub,never()).putState(eq(missingKey.toString()), any());
+            ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+            verify(stub).setEvent(eq(CrossingEvent.RENEWED), payload.capture());
+            assertEquals(1, new JSONObject(new String(payload.getValue(), UTF_8)).getJSONArray("crossings").length());
+        }
+
+        @Test
+        void renewalUsesTheValidityDurationOfTheCrossing(){
+            crossing.setValidityDuration(600);
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+
+            Crossing renewed = contract.renewFreeToCrossValidity(ctx, crossingId);
+
+            assertEquals(600, renewed.getValidUntil());
+            assertEquals(600, renewed.getValidityDuration());
+            crossing.setValidUntil(600);
+            verify(stub).putState(crossingCompKey.toString(), crossing.toBytes());
+        }
+
+        @Test
+        void batchRenewalRejectsEmptyBatch(){
+            assertThrows(ChaincodeException.class, () -> contract.renewFreeToCrossValidityBatch(ctx, new String[] {}));
+            verify(stub, never()).setEvent(any(), any());
+        }
+    }
+
+    @Nested
+    class CrossingConfigTests{
+        private Crossing crossing;
+
+        @BeforeEach
+        void init(){
+            ClientIdentity clientIdentity = mock(ClientIdentity.class);
+            crossing = new Crossing(crossingId, new String[] {}, CrossingState.FREE_TO_CROSS, false, 0);
+            when(ctx.getClientIdentity()).thenReturn(clientIdentity);
+            when(clientIdentity.getMSPID()).thenReturn("RailwayOrgMSP");
+            when(clientIdentity.getId()).thenReturn(railwayAdminId);
+            when(stub.getTxTimestamp()).thenReturn(Instant.ofEpochMilli(0));
+            when(stub.getState(crossingCompKey.toString())).thenReturn(crossing.toBytes());
+        }
+
+        @Test
+        void configIsStoredOnTheCrossing(){
+            Crossing updated = contract.updateCrossingConfig(ctx, crossingId, 3600, 120, "LEAST_OCCUPIED");
+
+            crossing.setValidityDuration(3600);
+            crossing.setMaxLeaseDuration(120);
+            crossing.setLaneSelection(LaneSelection.LEAST_OCCUPIED);
+            assertEquals(crossing, updated);
+            verify(stub).putState(crossingCompKey.toString(), crossing.toBytes());
+        }
+
+        @Test
+        void configRejectsUnknownPolicyAndDurations(){
+            assertThrows(ChaincodeException.class,
+                    () -> contract.updateCrossingConfig(ctx, crossingId, 3600, 120, "FASTEST"));
+            assertThrows(ChaincodeException.class,
+                    () -> contract.updateCrossingConfig(ctx, crossingId, 0, 120, ""));
+            assertThrows(ChaincodeException.class,
+                    () -> contract.updateCrossingConfig(ctx, crossingId, 3600, 100000, ""));
+            verify(stub, never()).putState(eq(crossingCompKey.toString()), any());
         }
-        
     }
     
 }
@@ -1,6 +1,9 @@
 package hu.bme;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 import org.apache.log4j.Logger;
 import org.junit.jupiter.api.Test;
@@ -19,4 +22,64 @@ class CrossingTest {
         assertEquals(crossing, newCrossing);
     }
 
+    @Test
+    void binarySerializableCrossing() {
+        String[] laneIds = { "123", "456" };
+        Crossing crossing = new Crossing("123", laneIds, CrossingState.LOCKED, true, 1652000000L);
+        Crossing newCrossing = Crossing.fromBytes(crossing.toBytes());
+        assertEquals(crossing, newCrossing);
+    }
+
+    @Test
+    void legacyJsonCrossing() {
+        String[] laneIds = { "123", "456" };
+        Crossing crossing = new Crossing("123", laneIds, CrossingState.FREE_TO_CROSS, false, 1);
+        Crossing newCrossing = Crossing.fromBytes(crossing.toJSONString().getBytes(UTF_8));
+        assertEquals(crossing, newCrossing);
+    }
+
+    @Test
+    void binarySerializableCrossingConfig() {
+        String[] laneIds = { "123", "456" };
+        Crossing crossing = new Crossing("123", laneIds, CrossingState.FREE_TO_CROSS, false, 1652000000L);
+        crossing.setValidityDuration(3600);
+        crossing.setMaxLeaseDuration(120);
+        crossing.setLaneSelection(LaneSelection.STICKY);
+        Crossing newCrossing = Crossing.fromBytes(crossing.toBytes());
+        assertEquals(crossing, newCrossing);
+        assertEquals(crossing, Crossing.fromJSONString(crossing.toJSONString()));
+    }
+
+    @Test
+    void enumsAreStoredAsFixedCodes() {
+        Crossing crossing = new Crossing("1", new String[] { "2" }, CrossingState.LOCKED, true, 0);
+        crossing.setLaneSelection(LaneSelection.POWER_OF_TWO);
+
+        assertArrayEquals(new byte[] { 1, 2, '1', 2, 2, '2', 1, 1, 0, 0, 0, 4 }, crossing.toBytes());
+        assertEquals(crossing, Crossing.fromBytes(crossing.toBytes()));
+
+        crossing.setState(CrossingState.FREE_TO_CROSS);
+        crossing.setLaneSelection(null);
+        assertArrayEquals(new byte[] { 1, 2, '1', 2, 2, '2', 0, 1, 0, 0, 0, 0 }, crossing.toBytes());
+        assertEquals(crossing, Crossing.fromBytes(crossing.toBytes()));
+    }
+
+    @Test
+    void everyLaneSelectionRoundTrips() {
+        Crossing crossing = new Crossing("1", new String[] { "2" }, CrossingState.FREE_TO_CROSS, false, 0);
+        for (LaneSelection policy : LaneSelection.values()) {
+            crossing.setLaneSelection(policy);
+            assertEquals(crossing, Crossing.fromBytes(crossing.toBytes()));
+        }
+    }
+
+    @Test
+    void legacyJsonCrossingUsesDefaultConfig() {
+        String json = "{\"id\":\"123\",\"laneIds\":[\"456\"],\"state\":\"FREE_TO_CROSS\",\"priorityLock\":false,"
+                + "\"validUntil\":1}";
+        Crossing crossing = Crossing.fromBytes(json.getBytes(UTF_8));
+        assertEquals(Crossing.DEFAULT, crossing.getValidityDuration());
+        assertEquals(Crossing.DEFAULT, crossing.getMaxLeaseDuration());
+        assertNull(crossing.getLaneSelection());
+    }
 }
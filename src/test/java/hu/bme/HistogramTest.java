@@ -0,0 +1,54 @@
+/*
+ * SPDX-License-Identifier: Apache License 2.0
+ */
+
+package hu.bme;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+
+    @Test
+    void bucketsCoverEveryValue() {
+        for (long value : new long[] { 0, 1, 7, 8, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE }) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(Histogram.lowestValueOf(bucket) <= value, "lowest of " + value);
+            assertTrue(Histogram.highestValueOf(bucket) >= value, "highest of " + value);
+        }
+    }
+
+    @Test
+    void bucketsAreContiguous() {
+        for (int bucket = 0; bucket < Histogram.bucketOf(Long.MAX_VALUE); bucket++) {
+            assertEquals(Histogram.highestValueOf(bucket) + 1, Histogram.lowestValueOf(bucket + 1));
+            assertEquals(bucket, Histogram.bucketOf(Histogram.lowestValueOf(bucket)));
+        }
+    }
+
+    @Test
+    void quantilesAreWithinTheBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        long median = histogram.getValueAtQuantile(0.5);
+        assertTrue(median >= 500 && median <= 500 * 9 / 8, "median " + median);
+        long p99 = histogram.getValueAtQuantile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 1000, "p99 " + p99);
+    }
+
+    @Test
+    void emptyHistogramReportsZero() {
+        Histogram histogram = new Histogram();
+
+        assertEquals(0, histogram.getValueAtQuantile(0.99));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+}
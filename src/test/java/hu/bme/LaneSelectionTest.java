@@ -0,0 +1,83 @@
+/*
+ * SPDX-License-Identifier: Apache License 2.0
+ */
+
+package hu.bme;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+import org.junit.jupiter.api.Test;
+
+class LaneSelectionTest {
+
+    private static final String[] LANE_IDS = { "lane0", "lane1", "lane2", "lane3" };
+    private static final int CLIENT_HASH = "client1".hashCode();
+
+    private final Map<String, Integer> occupied = new HashMap<>();
+    private final ToIntFunction<String> occupancy = laneId -> occupied.getOrDefault(laneId, 0);
+
+    @Test
+    void everyPolicyIsDeterministicAndTriesEachLaneOnce() {
+        occupied.put("lane1", 3);
+        occupied.put("lane2", 1);
+        for (LaneSelection policy : LaneSelection.values()) {
+            Integer[] order = policy.order(LANE_IDS, new Random("request1".hashCode()), CLIENT_HASH, occupancy);
+
+            assertArrayEquals(order, policy.order(LANE_IDS, new Random("request1".hashCode()), CLIENT_HASH, occupancy),
+                    policy.name());
+            assertEquals(new HashSet<>(Arrays.asList(0, 1, 2, 3)), new HashSet<>(Arrays.asList(order)), policy.name());
+        }
+    }
+
+    @Test
+    void stickyStartsAtTheSameLaneForAClient() {
+        Integer[] first = LaneSelection.STICKY.order(LANE_IDS, new Random(1), CLIENT_HASH, occupancy);
+        Integer[] second = LaneSelection.STICKY.order(LANE_IDS, new Random(2), CLIENT_HASH, occupancy);
+
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    void leastOccupiedStartsAtTheEmptiestLane() {
+        occupied.put("lane0", 5);
+        occupied.put("lane1", 2);
+        occupied.put("lane2", 7);
+        occupied.put("lane3", 4);
+
+        Integer[] order = LaneSelection.LEAST_OCCUPIED.order(LANE_IDS, new Random(1), CLIENT_HASH, occupancy);
+
+        assertArrayEquals(new Integer[] { 1, 3, 0, 2 }, order);
+    }
+
+    @Test
+    void powerOfTwoPrefersTheLessOccupiedOfItsChoices() {
+        int moved = 0;
+        for (int seed = 0; seed < 100; seed++) {
+            int emptyLane = seed % LANE_IDS.length;
+            for (int lane = 0; lane < LANE_IDS.length; lane++) {
+                occupied.put(LANE_IDS[lane], lane == emptyLane ? 0 : 8);
+            }
+
+            Integer[] random = LaneSelection.RANDOM_PROBE.order(LANE_IDS, new Random(seed), CLIENT_HASH, occupancy);
+            Integer[] order = LaneSelection.POWER_OF_TWO.order(LANE_IDS, new Random(seed), CLIENT_HASH, occupancy);
+
+            if (random[0] == emptyLane) {
+                assertEquals(emptyLane, (int) order[0]);
+            } else if (order[0] == emptyLane) {
+                moved++;
+            } else {
+                assertEquals(random[0], order[0]);
+            }
+        }
+        assertTrue(moved > 0);
+    }
+}
@@ -1,5 +1,6 @@
 package hu.bme;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -30,4 +31,18 @@ class LaneTest {
         lane.setPriorityLock(true);
         assertFalse(lane.isFree());
     }
+
+    @Test
+    void binarySerializableLane() {
+        Lane lane = new Lane("123", "123", 4, 3, true);
+        Lane newLane = Lane.fromBytes(lane.toBytes());
+        assertEquals(lane, newLane);
+    }
+
+    @Test
+    void legacyJsonLane() {
+        Lane lane = new Lane("123", "123", 1, 0, false);
+        Lane newLane = Lane.fromBytes(lane.toJSONString().getBytes(UTF_8));
+        assertEquals(lane, newLane);
+    }
 }
@@ -0,0 +1,247 @@
+/*
+ * SPDX-License-Identifier: Apache License 2.0
+ */
+
+package hu.bme;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.contract.ContractInterface;
+
+/**
+ * In-memory world state that endorses transactions the way a Fabric peer does: chaincode runs against the last
+ * committed state while recording a read/write set, and blocks of endorsed transactions are validated at commit time
+ * with MVCC and phantom read checks before their writes are applied.
+ *
+ * Any number of threads may endorse concurrently; commits wait for running endorsements and block new ones.
+ */
+public final class LedgerSimulator {
+
+    public enum ValidationCode {
+        VALID, MVCC_READ_CONFLICT, PHANTOM_READ_CONFLICT, ENDORSEMENT_FAILURE
+    }
+
+    static final Comparator<String> KEY_ORDER = (a, b) -> {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            final int ca = a.codePointAt(i);
+            final int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    };
+
+    static final class VersionedValue {
+        final byte[] value;
+        final long version;
+
+        VersionedValue(final byte[] value, final long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    private final NavigableMap<String, VersionedValue> worldState = new TreeMap<>(KEY_ORDER);
+    private final NavigableMap<String, VersionedValue> privateState = new TreeMap<>(KEY_ORDER);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final AtomicLong txCounter = new AtomicLong();
+    private long version;
+    private long blockHeight;
+
+    public SimulatedStub newTransaction(final SimulatedIdentity identity, final Instant timestamp,
+            final String function, final String... parameters) {
+        final String txId = String.format("%064x", txCounter.incrementAndGet());
+        return new SimulatedStub(this, txId, timestamp, identity, function, parameters);
+    }
+
+    /**
+     * Runs a transaction function of the contract on the given stub with the same lifecycle the Fabric contract
+     * runtime uses.
+     */
+    public <T> T invoke(final ContractInterface contract, final SimulatedStub stub, final Function<Context, T> function) {
+        return endorse(stub, () -> {
+            final Context ctx = contract.createContext(stub);
+            contract.beforeTransaction(ctx);
+            final T result = function.apply(ctx);
+            contract.afterTransaction(ctx, result);
+            return result;
+        });
+    }
+
+    public <T> T endorse(final SimulatedStub stub, final Supplier<T> simulation) {
+        lock.readLock().lock();
+        try {
+            final T result = simulation.get();
+            stub.seal();
+            return result;
+        } catch (RuntimeException e) {
+            stub.fail();
+            throw e;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<ValidationCode> commit(final List<SimulatedStub> block) {
+        lock.writeLock().lock();
+        try {
+            final List<ValidationCode> codes = new ArrayList<>(block.size());
+            for (final SimulatedStub tx : block) {
+                final ValidationCode code = validate(tx);
+                if (code == ValidationCode.VALID) {
+                    apply(tx);
+                }
+                tx.setValidationCode(code);
+                codes.add(code);
+            }
+            blockHeight++;
+            return codes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public ValidationCode commit(final SimulatedStub transaction) {
+        final List<SimulatedStub> block = new ArrayList<>(1);
+        block.add(transaction);
+        return commit(block).get(0);
+    }
+
+    public long getBlockHeight() {
+        return blockHeight;
+    }
+
+    public byte[] getCommittedState(final String key) {
+        lock.readLock().lock();
+        try {
+            final VersionedValue value = worldState.get(key);
+            return value == null ? null : value.value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public byte[] getCommittedPrivateData(final String collection, final String key) {
+        lock.readLock().lock();
+        try {
+            final VersionedValue value = privateState.get(privateKey(collection, key));
+            return value == null ? null : value.value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public NavigableMap<String, byte[]> getCommittedRange(final String startKey, final String endKey) {
+        lock.readLock().lock();
+        try {
+            final NavigableMap<String, byte[]> result = new TreeMap<>(KEY_ORDER);
+            range(startKey, endKey, true).forEach((key, value) -> result.put(key, value.value));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    VersionedValue read(final String key) {
+        return worldState.get(key);
+    }
+
+    VersionedValue readPrivate(final String collection, final String key) {
+        return privateState.get(privateKey(collection, key));
+    }
+
+    NavigableMap<String, VersionedValue> range(final String startKey, final String endKey,
+            final boolean endExclusive) {
+        if (endKey == null) {
+            return worldState.tailMap(startKey, true);
+        }
+        if (KEY_ORDER.compare(startKey, endKey) > 0) {
+            return new TreeMap<>(KEY_ORDER);
+        }
+        return worldState.subMap(startKey, true, endKey, !endExclusive);
+    }
+
+    static String privateKey(final String collection, final String key) {
+        return collection + '\u0000' + key;
+    }
+
+    static byte[] sha256(final byte[] value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ValidationCode validate(final SimulatedStub tx) {
+        if (tx.isFailed()) {
+            return ValidationCode.ENDORSEMENT_FAILURE;
+        }
+        for (final Map.Entry<String, Long> read : tx.getReadSet().entrySet()) {
+            if (versionOf(worldState.get(read.getKey())) != read.getValue()) {
+                return ValidationCode.MVCC_READ_CONFLICT;
+            }
+        }
+        for (final Map.Entry<String, Long> read : tx.getPrivateReadSet().entrySet()) {
+            if (versionOf(privateState.get(read.getKey())) != read.getValue()) {
+                return ValidationCode.MVCC_READ_CONFLICT;
+            }
+        }
+        for (final SimulatedStub.RangeRead rangeRead : tx.getRangeReads()) {
+            final String end = rangeRead.isExhausted() ? rangeRead.getEndKey() : rangeRead.getLastKey();
+            final boolean endExclusive = rangeRead.isExhausted();
+            final List<String> keys = new ArrayList<>();
+            final List<Long> versions = new ArrayList<>();
+            if (rangeRead.isExhausted() || rangeRead.getLastKey() != null) {
+                range(rangeRead.getStartKey(), end, endExclusive).forEach((key, value) -> {
+                    keys.add(key);
+                    versions.add(value.version);
+                });
+            }
+            if (!keys.equals(rangeRead.getKeys()) || !versions.equals(rangeRead.getVersions())) {
+                return ValidationCode.PHANTOM_READ_CONFLICT;
+            }
+        }
+        return ValidationCode.VALID;
+    }
+
+    private void apply(final SimulatedStub tx) {
+        final long txVersion = ++version;
+        tx.getWriteSet().forEach((key, value) -> {
+            if (value == null) {
+                worldState.remove(key);
+            } else {
+                worldState.put(key, new VersionedValue(value, txVersion));
+            }
+        });
+        tx.getPrivateWriteSet().forEach((key, value) -> {
+            if (value == null) {
+                privateState.remove(key);
+            } else {
+                privateState.put(key, new VersionedValue(value, txVersion));
+            }
+        });
+    }
+
+    static long versionOf(final VersionedValue value) {
+        return value == null ? 0L : value.version;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * SPDX-License-Identifier: Apache License 2.0
+ */
+
+package hu.bme;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import hu.bme.LedgerSimulator.ValidationCode;
+
+class LedgerSimulatorTest {
+    private static final Instant T0 = Instant.ofEpochSecond(1_600_000_000L);
+
+    private LedgerSimulator ledger;
+
+    @BeforeEach
+    void init() {
+        ledger = new LedgerSimulator();
+    }
+
+    private void put(final String key, final String value) {
+        final SimulatedStub stub = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "put");
+        ledger.endorse(stub, () -> {
+            stub.putState(key, value.getBytes(UTF_8));
+            return null;
+        });
+        assertEquals(ValidationCode.VALID, ledger.commit(stub));
+    }
+
+    @Nested
+    class Validation {
+
+        @Test
+        void staleReadIsAnMvccConflict() {
+            put("key", "1");
+            final SimulatedStub first = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "inc");
+            final SimulatedStub second = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "inc");
+            for (final SimulatedStub stub : new SimulatedStub[] { first, second }) {
+                ledger.endorse(stub, () -> {
+                    stub.getState("key");
+                    stub.putState("key", "2".getBytes(UTF_8));
+                    return null;
+                });
+            }
+
+            final List<SimulatedStub> block = new ArrayList<>();
+            block.add(first);
+            block.add(second);
+            final List<ValidationCode> codes = ledger.commit(block);
+
+            assertEquals(ValidationCode.VALID, codes.get(0));
+            assertEquals(ValidationCode.MVCC_READ_CONFLICT, codes.get(1));
+        }
+
+        @Test
+        void independentKeysDoNotConflict() {
+            final SimulatedStub first = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "a");
+            final SimulatedStub second = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "b");
+            ledger.endorse(first, () -> {
+                first.getState("a");
+                first.putState("a", "1".getBytes(UTF_8));
+                return null;
+            });
+            ledger.endorse(second, () -> {
+                second.getState("b");
+                second.putState("b", "1".getBytes(UTF_8));
+                return null;
+            });
+
+            final List<SimulatedStub> block = new ArrayList<>();
+            block.add(first);
+            block.add(second);
+
+            assertEquals(ValidationCode.VALID, ledger.commit(block).get(0));
+            assertEquals(ValidationCode.VALID, second.getValidationCode());
+        }
+
+        @Test
+        void insertIntoScannedRangeIsAPhantomConflict() {
+            final String prefix = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "key")
+                    .createCompositeKey("LANE", "crossing1").toString();
+            put(prefix + "a", "1");
+            final SimulatedStub scan = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "scan");
+            ledger.endorse(scan, () -> {
+                try (QueryResultsIterator<KeyValue> it = scan.getStateByPartialCompositeKey("LANE", "crossing1")) {
+                    it.forEach(kv -> scan.putState("count", kv.getValue()));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            });
+            put(prefix + "b", "1");
+
+            assertEquals(ValidationCode.PHANTOM_READ_CONFLICT, ledger.commit(scan));
+        }
+
+        @Test
+        void partiallyIteratedRangeOnlyValidatesWhatWasRead() {
+            put("a", "1");
+            put("c", "1");
+            final SimulatedStub scan = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "scan");
+            ledger.endorse(scan, () -> {
+                final Iterator<KeyValue> it = scan.getStateByRange("a", "z").iterator();
+                scan.putState("first", it.next().getValue());
+                return null;
+            });
+            put("d", "1");
+
+            assertEquals(ValidationCode.VALID, ledger.commit(scan));
+        }
+
+        @Test
+        void failedEndorsementIsNotApplied() {
+            final SimulatedStub stub = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "fail");
+            assertThrows(IllegalStateException.class, () -> ledger.endorse(stub, () -> {
+                stub.putState("key", "1".getBytes(UTF_8));
+                throw new IllegalStateException("boom");
+            }));
+
+            assertEquals(ValidationCode.ENDORSEMENT_FAILURE, ledger.commit(stub));
+            assertEquals(null, ledger.getCommittedState("key"));
+        }
+
+        @Test
+        void writesAreNotVisibleBeforeCommit() {
+            put("key", "1");
+            final SimulatedStub stub = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "write");
+            final byte[] read = ledger.endorse(stub, () -> {
+                stub.putState("key", "2".getBytes(UTF_8));
+                return stub.getState("key");
+            });
+
+            assertArrayEquals("1".getBytes(UTF_8), read);
+            ledger.commit(stub);
+            assertArrayEquals("2".getBytes(UTF_8), ledger.getCommittedState("key"));
+        }
+
+        @Test
+        void paginatedQueriesAreReadOnly() {
+            final SimulatedStub stub = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "page");
+            assertThrows(IllegalStateException.class, () -> ledger.endorse(stub, () -> {
+                stub.getStateByRangeWithPagination("a", "z", 10, "");
+                stub.putState("key", "1".getBytes(UTF_8));
+                return null;
+            }));
+        }
+    }
+
+    @Nested
+    class CarCrossingLoad {
+        private static final String CROSSING_ID = "crossing1";
+        private static final int LANES = 4;
+        private static final int CAPACITY = 8;
+        private static final int ROUNDS = 20;
+        private static final int CONCURRENT_REQUESTS = 50;
+
+        private CrossingContract contract;
+        private long clock;
+
+        private SimulatedStub newTransaction(final SimulatedIdentity identity, final String function) {
+            return ledger.newTransaction(identity, T0.plusMillis(clock++), function);
+        }
+
+        @ParameterizedTest
+        @EnumSource(LaneSelection.class)
+        void concurrentRequestsAndReleasesKeepOccupancyConsistent(final LaneSelection laneSelection)
+                throws Exception {
+            contract = new CrossingContract(laneSelection);
+            final String[] laneIds = new String[LANES];
+            for (int i = 0; i < LANES; i++) {
+                laneIds[i] = "lane" + i;
+            }
+            final SimulatedStub create = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing");
+            ledger.invoke(contract, create, ctx -> contract.createCrossing(ctx, CROSSING_ID, laneIds, CAPACITY));
+            assertEquals(ValidationCode.VALID, ledger.commit(create));
+
+            final Map<ValidationCode, Integer> outcomes = new EnumMap<>(ValidationCode.class);
+            final Map<Request, SimulatedIdentity> granted = new LinkedHashMap<>();
+            final ExecutorService executor = Executors.newFixedThreadPool(8);
+            int endorsed = 0;
+            try {
+                for (int round = 0; round < ROUNDS; round++) {
+                    final List<SimulatedStub> releases = new ArrayList<>();
+                    final List<Request> released = new ArrayList<>();
+                    final List<Future<Object>> releasing = new ArrayList<>();
+                    for (final Map.Entry<Request, SimulatedIdentity> grant : granted.entrySet()) {
+                        final Request request = grant.getKey();
+                        final SimulatedStub stub = newTransaction(grant.getValue(), "releaseCarPermission");
+                        releases.add(stub);
+                        released.add(request);
+                        releasing.add(executor.submit(() -> ledger.invoke(contract, stub, ctx -> {
+                            contract.releaseCarPermission(ctx, request.getId(), CROSSING_ID,
+                                    request.getLaneId());
+                            return null;
+                        })));
+                    }
+                    for (final Future<Object> release : releasing) {
+                        release.get();
+                    }
+                    final List<ValidationCode> releaseCodes = ledger.commit(releases);
+                    for (int i = 0; i < releaseCodes.size(); i++) {
+                        outcomes.merge(releaseCodes.get(i), 1, Integer::sum);
+                        if (releaseCodes.get(i) == ValidationCode.VALID) {
+                            granted.remove(released.get(i));
+                        }
+                    }
+                    endorsed += releases.size();
+                    assertOccupancy(laneIds, granted.size());
+
+                    final List<SimulatedStub> block = new ArrayList<>();
+                    final List<SimulatedIdentity> vehicles = new ArrayList<>();
+                    final List<Future<Request>> requests = new ArrayList<>();
+                    for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+                        final SimulatedIdentity vehicle = SimulatedIdentity.vehicle(i);
+                        final SimulatedStub stub = newTransaction(vehicle, "requestCarCrossing");
+                        block.add(stub);
+                        vehicles.add(vehicle);
+                        requests.add(executor.submit(() -> ledger.invoke(contract, stub,
+                                ctx -> contract.requestCarCrossing(ctx, CROSSING_ID))));
+                    }
+                    final List<Request> results = new ArrayList<>();
+                    for (final Future<Request> request : requests) {
+                        results.add(request.get());
+                    }
+                    final List<ValidationCode> codes = ledger.commit(block);
+                    for (int i = 0; i < codes.size(); i++) {
+                        outcomes.merge(codes.get(i), 1, Integer::sum);
+                        if (codes.get(i) == ValidationCode.VALID && results.get(i).isGranted()) {
+                            granted.put(results.get(i), vehicles.get(i));
+                        }
+                    }
+                    endorsed += block.size();
+                    assertOccupancy(laneIds, granted.size());
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            final int conflicts = outcomes.getOrDefault(ValidationCode.MVCC_READ_CONFLICT, 0)
+                    + outcomes.getOrDefault(ValidationCode.PHANTOM_READ_CONFLICT, 0);
+            System.out.println(String.format("%s: %d transactions in %d blocks: %s, conflict rate %.1f%%",
+                    laneSelection, endorsed, ledger.getBlockHeight(), outcomes, 100.0 * conflicts / endorsed));
+            assertTrue(outcomes.getOrDefault(ValidationCode.VALID, 0) > ROUNDS);
+        }
+
+        private void assertOccupancy(final String[] laneIds, final int granted) {
+            int occupied = 0;
+            for (final String laneId : laneIds) {
+                final SimulatedStub stub = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "readLane");
+                final Lane lane = ledger.invoke(contract, stub, ctx -> contract.readLane(ctx, laneId, CROSSING_ID));
+                assertTrue(lane.getOccupied() >= 0 && lane.getOccupied() <= lane.getCapacity());
+                occupied += lane.getOccupied();
+            }
+            assertEquals(granted, occupied);
+        }
+    }
+
+    @Nested
+    class RequestIdStress {
+        private static final String CROSSING_ID = "crossing1";
+        private static final int TRANSACTIONS = 5000;
+        private static final int BATCH_EVERY = 10;
+        private static final int BATCH_SIZE = 5;
+        private static final int BLOCK_SIZE = 100;
+
+        private final CrossingContract contract = new CrossingContract();
+
+        @Test
+        void thousandsOfRequestsPerSecondGetDistinctIds() throws Exception {
+            final SimulatedStub create = ledger.newTransaction(SimulatedIdentity.RAILWAY_ADMIN, T0, "createCrossing");
+            ledger.invoke(contract, create,
+                    ctx -> contract.createCrossing(ctx, CROSSING_ID, new String[] { "lane0", "lane1" }, 1000));
+            assertEquals(ValidationCode.VALID, ledger.commit(create));
+
+            final Set<String> ids = new HashSet<>();
+            int requested = 0;
+            final List<Request> recorded = new ArrayList<>();
+            final ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                for (int first = 0; first < TRANSACTIONS; first += BLOCK_SIZE) {
+                    final List<SimulatedStub> block = new ArrayList<>();
+                    final List<Future<Request[]>> results = new ArrayList<>();
+                    for (int i = first; i < first + BLOCK_SIZE; i++) {
+                        // 5000 transactions per second, all of them within the same epoch second
+                        final Instant timestamp = T0.plusNanos(i * 200_000L);
+                        final boolean batch = i % BATCH_EVERY == 0;
+                        final SimulatedStub stub = ledger.newTransaction(SimulatedIdentity.vehicle(i), timestamp,
+                                batch ? "requestCarCrossingBatch" : "requestCarCrossing");
+                        block.add(stub);
+                        results.add(executor.submit(() -> ledger.invoke(contract, stub, ctx -> batch
+                                ? contract.requestCarCrossingBatch(ctx, CROSSING_ID, BATCH_SIZE, false)
+                                : new Request[] { contract.requestCarCrossing(ctx, CROSSING_ID) })));
+                    }
+                    final List<Request[]> requests = new ArrayList<>();
+                    for (final Future<Request[]> result : results) {
+                        requests.add(result.get());
+                    }
+                    final List<ValidationCode> codes = ledger.commit(block);
+                    for (int i = 0; i < codes.size(); i++) {
+                        for (final Request request : requests.get(i)) {
+                            requested++;
+                            ids.add(request.getId());
+                            if (codes.get(i) == ValidationCode.VALID) {
+                                recorded.add(request);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertEquals(requested, ids.size());
+            assertEquals(recorded.size(), committedKeys(Request.TYPE));
+            for (final Request request : recorded) {
+                final String key = new CompositeKey(RequestPrivateData.COLLECTION_NAME, request.getId(),
+                        request.getLaneId(), CROSSING_ID).toString();
+                assertTrue(ledger.getCommittedPrivateData(RequestPrivateData.COLLECTION_NAME, key) != null);
+            }
+            assertTrue(recorded.size() > TRANSACTIONS / 2);
+        }
+
+        private int committedKeys(final String objectType) {
+            final String prefix = new CompositeKey(objectType).toString();
+            return ledger.getCommittedRange(prefix, prefix + new String(Character.toChars(Character.MAX_CODE_POINT)))
+                    .size();
+        }
+    }
+}
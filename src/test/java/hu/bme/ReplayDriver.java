@@ -0,0 +1,469 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package hu.bme;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.contract.annotation.Transaction;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import hu.bme.LedgerSimulator.ValidationCode;
+
+/**
+ * Replays a workload against {@link CrossingContract} on an in-process {@link LedgerSimulator}. Transactions are
+ * endorsed concurrently, ordered into blocks and validated like on a peer, and the end to end latency from submission
+ * to commit is reported per transaction name. Evaluate transactions are only endorsed, as a client would only query
+ * them.
+ *
+ * The workload is either a .txdata file, optionally repeated on distinct crossings, or a synthetic car traffic where
+ * every granted crossing permission is released again by the same vehicle. The transactions of a file depend on the
+ * ones before them, so each copy of the file is replayed in order: a transaction is submitted once the previous one
+ * has committed or failed, and only the copies run concurrently. Car requests that are committed but not granted are
+ * counted as valid and listed as denied.
+ *
+ * <pre>
+ * --file=transaction_data/crossing-transactions.txdata  --repeat=1
+ * --synthetic=N --crossings=4 --lanes=2 --capacity=4 --read-ratio=0.1
+ * --rate=0 (tx/s, 0 is unlimited) --concurrency=8 --block-size=50 --batch-timeout-ms=20 --tick-ms=1 --seed=1
+ * --lane-selection=RANDOM_PROBE|STICKY|LEAST_OCCUPIED|POWER_OF_TWO --verbose
+ * </pre>
+ */
+public final class ReplayDriver {
+
+    private static final Instant START = Instant.ofEpochSecond(1_600_000_000L);
+    private static final String CAR_REQUEST = "requestCarCrossing";
+    private static final String CAR_RELEASE = "releaseCarPermission";
+    private static final String ENDORSEMENT_FAILURE = "endorsement: ";
+
+    private static final class Workload {
+        private final String name;
+        private final Object[] arguments;
+        private final SimulatedIdentity identity;
+        private Workload next;
+
+        Workload(final String name, final SimulatedIdentity identity, final Object... arguments) {
+            this.name = name;
+            this.arguments = arguments;
+            this.identity = identity;
+        }
+    }
+
+    private static final class Endorsed {
+        private final Workload workload;
+        private final SimulatedStub stub;
+        private final Object result;
+        private final long submitted;
+
+        Endorsed(final Workload workload, final SimulatedStub stub, final Object result, final long submitted) {
+            this.workload = workload;
+            this.stub = stub;
+            this.result = result;
+            this.submitted = submitted;
+        }
+    }
+
+    private static final class Statistics {
+        private final List<Long> latencies = new ArrayList<>();
+        private final Map<String, Integer> failures = new HashMap<>();
+        private int count;
+        private int valid;
+
+        synchronized void valid(final long latency) {
+            count++;
+            valid++;
+            latencies.add(latency);
+        }
+
+        synchronized void denied(final long latency) {
+            valid(latency);
+            failures.merge("denied", 1, Integer::sum);
+        }
+
+        synchronized void failed(final long latency, final String reason) {
+            count++;
+            latencies.add(latency);
+            failures.merge(reason, 1, Integer::sum);
+        }
+
+        synchronized String format(final String name) {
+            final long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            return String.format("%-26s %7d %7d %7d %9.2f %9.2f %9.2f  %s", name, count, valid, count - valid,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), failures);
+        }
+
+        private static double percentile(final long[] sorted, final double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            final int index = Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1);
+            return sorted[index] / 1_000_000.0;
+        }
+    }
+
+    private final Map<String, String> options;
+    private final CrossingContract contract;
+    private final LedgerSimulator ledger = new LedgerSimulator();
+    private final Map<String, Method> transactions = new HashMap<>();
+    private final Map<String, Statistics> statistics = new HashMap<>();
+    private final BlockingQueue<Workload> workloads = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Endorsed> ordererQueue = new LinkedBlockingQueue<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong clock = new AtomicLong();
+    private final long tickMillis;
+    private volatile boolean running = true;
+
+    ReplayDriver(final Map<String, String> options) {
+        this.options = options;
+        this.tickMillis = Long.parseLong(option("tick-ms", "1"));
+        this.contract = new CrossingContract(LaneSelection.valueOf(option("lane-selection", "RANDOM_PROBE")));
+        for (final Method method : CrossingContract.class.getMethods()) {
+            if (method.getParameterCount() > 0 && method.getParameterTypes()[0] == Context.class) {
+                transactions.put(method.getName(), method);
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final String option = arg.startsWith("--") ? arg.substring(2) : arg;
+            final int split = option.indexOf('=');
+            if (split < 0) {
+                options.put(option, "true");
+            } else {
+                options.put(option.substring(0, split), option.substring(split + 1));
+            }
+        }
+        if (!options.containsKey("verbose")) {
+            java.util.logging.Logger.getLogger("hu.bme").setLevel(Level.SEVERE);
+        }
+        new ReplayDriver(options).run();
+    }
+
+    private String option(final String name, final String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(final String name, final int defaultValue) {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+
+    void run() throws Exception {
+        final int submitted = options.containsKey("synthetic") ? loadSynthetic()
+                : loadFile(option("file", "transaction_data/crossing-transactions.txdata"), intOption("repeat", 1));
+        final int concurrency = intOption("concurrency", 8);
+        final double rate = Double.parseDouble(option("rate", "0"));
+        final ExecutorService endorsers = Executors.newFixedThreadPool(concurrency);
+        final Semaphore endorsing = new Semaphore(concurrency);
+        final Thread orderer = new Thread(this::order, "orderer");
+        orderer.start();
+
+        final long start = System.nanoTime();
+        long sent = 0;
+        while (true) {
+            final Workload workload = workloads.poll(10, TimeUnit.MILLISECONDS);
+            if (workload == null) {
+                if (outstanding.get() == 0 && workloads.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+            if (rate > 0) {
+                final long due = start + (long) (sent * 1_000_000_000L / rate);
+                final long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            sent++;
+            outstanding.incrementAndGet();
+            endorsing.acquire();
+            final long submittedAt = System.nanoTime();
+            endorsers.execute(() -> {
+                try {
+                    endorse(workload, submittedAt);
+                } finally {
+                    endorsing.release();
+                }
+            });
+        }
+        final long elapsed = System.nanoTime() - start;
+        running = false;
+        orderer.join();
+        endorsers.shutdown();
+        report(submitted, sent, elapsed);
+    }
+
+    private int loadFile(final String file, final int repeat) throws IOException {
+        final JSONArray entries = new JSONArray(new String(Files.readAllBytes(Paths.get(file)), UTF_8));
+        for (int copy = 0; copy < repeat; copy++) {
+            Workload previous = null;
+            for (int i = 0; i < entries.length(); i++) {
+                final JSONObject entry = entries.getJSONObject(i);
+                final String name = entry.getString("transactionName");
+                final Method method = transaction(name);
+                final JSONArray jsonArguments = entry.getJSONArray("arguments");
+                final Parameter[] parameters = method.getParameters();
+                final Object[] arguments = new Object[parameters.length - 1];
+                for (int p = 1; p < parameters.length; p++) {
+                    Object argument = jsonArguments.get(p - 1);
+                    if (repeat > 1 && "crossingId".equals(parameters[p].getName())) {
+                        argument = argument + "-" + copy;
+                    }
+                    arguments[p - 1] = argument;
+                }
+                final Workload workload = new Workload(name, identityFor(name, i), arguments);
+                if (previous == null) {
+                    workloads.add(workload);
+                } else {
+                    previous.next = workload;
+                }
+                previous = workload;
+            }
+        }
+        return repeat * entries.length();
+    }
+
+    private int loadSynthetic() {
+        final int transactionCount = intOption("synthetic", 1000);
+        final int crossings = intOption("crossings", 4);
+        final int lanes = intOption("lanes", 2);
+        final int capacity = intOption("capacity", 4);
+        final double readRatio = Double.parseDouble(option("read-ratio", "0.1"));
+        final Random random = new Random(Long.parseLong(option("seed", "1")));
+
+        final String[] laneIds = new String[lanes];
+        for (int i = 0; i < lanes; i++) {
+            laneIds[i] = String.format("%02d", i);
+        }
+        final List<SimulatedStub> setup = new ArrayList<>();
+        for (int c = 0; c < crossings; c++) {
+            final String crossingId = crossingId(c);
+            final SimulatedStub stub = newTransaction(SimulatedIdentity.RAILWAY_ADMIN, "createCrossing");
+            ledger.invoke(contract, stub, ctx -> contract.createCrossing(ctx, crossingId, laneIds, capacity));
+            setup.add(stub);
+        }
+        ledger.commit(setup);
+
+        for (int i = 0; i < transactionCount; i++) {
+            final String crossingId = crossingId(random.nextInt(crossings));
+            if (random.nextDouble() < readRatio) {
+                workloads.add(new Workload("readCrossing", SimulatedIdentity.RAILWAY_OPERATOR, crossingId));
+            } else {
+                workloads.add(new Workload(CAR_REQUEST, SimulatedIdentity.vehicle(i), crossingId));
+            }
+        }
+        return transactionCount;
+    }
+
+    private static String crossingId(final int index) {
+        return String.format("%03d", index + 1);
+    }
+
+    private static SimulatedIdentity identityFor(final String name, final int index) {
+        return name.contains("Car") ? SimulatedIdentity.vehicle(index) : SimulatedIdentity.RAILWAY_ADMIN;
+    }
+
+    private Method transaction(final String name) {
+        final Method method = transactions.get(name);
+        if (method == null) {
+            throw new IllegalArgumentException("CrossingContract has no transaction " + name);
+        }
+        return method;
+    }
+
+    private SimulatedStub newTransaction(final SimulatedIdentity identity, final String name) {
+        return ledger.newTransaction(identity, START.plusMillis(clock.getAndIncrement() * tickMillis), name);
+    }
+
+    private void endorse(final Workload workload, final long submitted) {
+        final SimulatedStub stub = newTransaction(workload.identity, workload.name);
+        final Method method = transaction(workload.name);
+        try {
+            final Object result = ledger.invoke(contract, stub, ctx -> call(method, ctx, workload.arguments));
+            final Transaction transaction = method.getAnnotation(Transaction.class);
+            if (transaction != null && transaction.intent() == Transaction.TYPE.EVALUATE) {
+                statistics(workload.name).valid(System.nanoTime() - submitted);
+                completed(workload);
+            } else {
+                ordererQueue.add(new Endorsed(workload, stub, result, submitted));
+            }
+        } catch (RuntimeException e) {
+            statistics(workload.name).failed(System.nanoTime() - submitted,
+                    ENDORSEMENT_FAILURE + e.getClass().getSimpleName());
+            completed(workload);
+        }
+    }
+
+    private Object call(final Method method, final Context ctx, final Object[] arguments) {
+        final Class<?>[] types = method.getParameterTypes();
+        final Object[] converted = new Object[types.length];
+        converted[0] = ctx;
+        for (int i = 1; i < types.length; i++) {
+            converted[i] = convert(arguments[i - 1], types[i]);
+        }
+        try {
+            return method.invoke(contract, converted);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object convert(final Object argument, final Class<?> type) {
+        if (type == String.class) {
+            return String.valueOf(argument);
+        } else if (type == String[].class) {
+            final JSONArray array = argument instanceof JSONArray ? (JSONArray) argument
+                    : new JSONArray(String.valueOf(argument));
+            final String[] values = new String[array.length()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = String.valueOf(array.get(i));
+            }
+            return values;
+        } else if (type == int.class) {
+            return Integer.parseInt(String.valueOf(argument));
+        } else if (type == long.class) {
+            return Long.parseLong(String.valueOf(argument));
+        } else if (type == boolean.class) {
+            return Boolean.parseBoolean(String.valueOf(argument));
+        }
+        throw new IllegalArgumentException("Unsupported transaction parameter type " + type);
+    }
+
+    private void order() {
+        final int blockSize = intOption("block-size", 50);
+        final long batchTimeout = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(option("batch-timeout-ms", "20")));
+        final List<Endorsed> block = new ArrayList<>();
+        long blockStarted = 0;
+        try {
+            while (running || !ordererQueue.isEmpty() || !block.isEmpty()) {
+                final Endorsed endorsed = ordererQueue.poll(1, TimeUnit.MILLISECONDS);
+                if (endorsed != null) {
+                    if (block.isEmpty()) {
+                        blockStarted = System.nanoTime();
+                    }
+                    block.add(endorsed);
+                }
+                if (!block.isEmpty()
+                        && (block.size() >= blockSize || System.nanoTime() - blockStarted >= batchTimeout)) {
+                    commit(block);
+                    block.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit(final List<Endorsed> block) {
+        final List<SimulatedStub> stubs = new ArrayList<>(block.size());
+        block.forEach(endorsed -> stubs.add(endorsed.stub));
+        final List<ValidationCode> codes = ledger.commit(stubs);
+        final long committed = System.nanoTime();
+        for (int i = 0; i < block.size(); i++) {
+            final Endorsed endorsed = block.get(i);
+            final Statistics stats = statistics(endorsed.workload.name);
+            final long latency = committed - endorsed.submitted;
+            if (codes.get(i) != ValidationCode.VALID) {
+                stats.failed(latency, codes.get(i).name());
+                if (CAR_RELEASE.equals(endorsed.workload.name)) {
+                    // a vehicle has to give its permission back, so it keeps retrying
+                    workloads.add(endorsed.workload);
+                    outstanding.decrementAndGet();
+                    continue;
+                }
+            } else if (CAR_REQUEST.equals(endorsed.workload.name)) {
+                final Request request = (Request) endorsed.result;
+                if (request.isGranted()) {
+                    stats.valid(latency);
+                    workloads.add(new Workload(CAR_RELEASE, endorsed.workload.identity, request.getId(),
+                            request.getCrossingId(), request.getLaneId()));
+                } else {
+                    stats.denied(latency);
+                }
+            } else {
+                stats.valid(latency);
+            }
+            completed(endorsed.workload);
+        }
+    }
+
+    /**
+     * Submits the transaction that follows a finished one in its file, before the finished one stops being
+     * outstanding, so the replay does not end in between.
+     */
+    private void completed(final Workload workload) {
+        if (workload.next != null) {
+            workloads.add(workload.next);
+        }
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * The transactions that failed at endorsement, as the contract rejected their proposal.
+     */
+    int getEndorsementFailures() {
+        int failed = 0;
+        for (final Statistics stats : statistics.values()) {
+            synchronized (stats) {
+                for (final Map.Entry<String, Integer> failure : stats.failures.entrySet()) {
+                    if (failure.getKey().startsWith(ENDORSEMENT_FAILURE)) {
+                        failed += failure.getValue();
+                    }
+                }
+            }
+        }
+        return failed;
+    }
+
+    private Statistics statistics(final String name) {
+        synchronized (statistics) {
+            return statistics.computeIfAbsent(name, n -> new Statistics());
+        }
+    }
+
+    private void report(final int loaded, final long sent, final long elapsed) {
+        final double seconds = elapsed / 1_000_000_000.0;
+        int valid = 0;
+        for (final Statistics stats : statistics.values()) {
+            valid += stats.valid;
+        }
+        System.out.println(String.format("%d transactions (%d loaded) in %d blocks, %.2f s: %.1f tx/s submitted, "
+                + "%.1f tx/s valid", sent, loaded, ledger.getBlockHeight(), seconds, sent / seconds,
+                valid / seconds));
+        System.out.println(String.format("%-26s %7s %7s %7s %9s %9s %9s  %s", "transaction", "count", "valid",
+                "failed", "p50 ms", "p99 ms", "p999 ms", "outcomes"));
+        statistics.keySet().stream().sorted().forEach(name -> System.out.println(statistics.get(name).format(name)));
+    }
+}
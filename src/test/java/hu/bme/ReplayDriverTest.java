@@ -0,0 +1,26 @@
+/*
+ * SPDX-License-Identifier: Apache License 2.0
+ */
+
+package hu.bme;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class ReplayDriverTest {
+
+    @Test
+    void theShippedFileReplaysWithoutEndorsementFailures() throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        options.put("repeat", "4");
+        final ReplayDriver driver = new ReplayDriver(options);
+
+        driver.run();
+
+        assertEquals(0, driver.getEndorsementFailures());
+    }
+}
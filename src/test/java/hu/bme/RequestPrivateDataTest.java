@@ -1,5 +1,6 @@
 package hu.bme;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import org.apache.log4j.Logger;
@@ -22,4 +23,18 @@ class RequestPrivateDataTest {
         assertEquals(pvdata, newPvData);
     }
 
+    @Test
+    void binarySerializableRequestPrivateData() {
+        RequestPrivateData pvdata = new RequestPrivateData("123", "N/A", "\u00e1tj\u00e1r\u00f3",
+                "x509::CN=RailwayOrg Admin, OU=admin::CN=RailwayOrg CA");
+        RequestPrivateData newPvData = RequestPrivateData.fromBytes(pvdata.toBytes());
+        assertEquals(pvdata, newPvData);
+    }
+
+    @Test
+    void legacyJsonRequestPrivateData() {
+        RequestPrivateData pvdata = new RequestPrivateData("123", "123", "123", "123");
+        RequestPrivateData newPvData = RequestPrivateData.fromBytes(pvdata.toJSONString().getBytes(UTF_8));
+        assertEquals(pvdata, newPvData);
+    }
 }
@@ -1,5 +1,7 @@
 package hu.bme;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import org.apache.log4j.Logger;
@@ -18,4 +20,38 @@ class RequestTest {
         log.info(newRequest.toJSONString());
         assertEquals(request, newRequest);
     }
+
+    @Test
+    void binarySerializableRequest() {
+        Request request = new Request("-4962768465676381896", "01", "N/A", RequesterRole.CAR, false, true);
+        Request newRequest = Request.fromBytes(request.toBytes());
+        assertEquals(request, newRequest);
+    }
+
+    @Test
+    void legacyJsonRequest() {
+        Request request = new Request("0001", "01", "01", RequesterRole.TRAIN, true, true);
+        Request newRequest = Request.fromBytes(request.toJSONString().getBytes(UTF_8));
+        assertEquals(request, newRequest);
+    }
+
+    @Test
+    void rolesAreStoredAsFixedCodes() {
+        Request train = new Request("1", "2", "3", RequesterRole.TRAIN, true, true);
+        Request car = new Request("1", "2", "3", RequesterRole.CAR, true, true);
+
+        assertArrayEquals(new byte[] { 1, 2, '1', 2, '2', 2, '3', 0, 1, 1, 1, 0, 0 }, train.toBytes());
+        assertArrayEquals(new byte[] { 1, 2, '1', 2, '2', 2, '3', 1, 1, 1, 1, 0, 0 }, car.toBytes());
+        assertEquals(train, Request.fromBytes(train.toBytes()));
+        assertEquals(car, Request.fromBytes(car.toBytes()));
+    }
+
+    @Test
+    void queuedRequestRoundTrips() {
+        Request request = new Request("0001", "01", "N/A", RequesterRole.CAR, false, false);
+        request.setQueued(true);
+
+        assertEquals(request, Request.fromBytes(request.toBytes()));
+        assertEquals(request, Request.fromJSONString(request.toJSONString()));
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * SPDX-License-Identifier: Apache License 2.0
+ */
+
+package hu.bme;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.hyperledger.fabric.protos.msp.Identities.SerializedIdentity;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Client identity backed by one of the X.509 certificates under src/test/resources/identities, serialized the way
+ * the peer hands it to the chaincode as the transaction creator.
+ */
+public final class SimulatedIdentity {
+    public static final String RAILWAY_MSP = "RailwayOrgMSP";
+    public static final String VEHICLE_OWNER_MSP = "VehicleOwnerOrgMSP";
+    public static final int VEHICLE_COUNT = 8;
+
+    public static final SimulatedIdentity RAILWAY_ADMIN = load(RAILWAY_MSP, "railway-admin");
+    public static final SimulatedIdentity RAILWAY_OPERATOR = load(RAILWAY_MSP, "railway-operator");
+
+    private static final SimulatedIdentity[] VEHICLES = new SimulatedIdentity[VEHICLE_COUNT];
+
+    static {
+        for (int i = 0; i < VEHICLE_COUNT; i++) {
+            VEHICLES[i] = load(VEHICLE_OWNER_MSP, "vehicle-" + (i + 1));
+        }
+    }
+
+    private final String mspId;
+    private final byte[] creator;
+
+    private SimulatedIdentity(final String mspId, final byte[] certificate) {
+        this.mspId = mspId;
+        this.creator = SerializedIdentity.newBuilder().setMspid(mspId).setIdBytes(ByteString.copyFrom(certificate))
+                .build().toByteArray();
+    }
+
+    public static SimulatedIdentity vehicle(final int index) {
+        return VEHICLES[Math.floorMod(index, VEHICLE_COUNT)];
+    }
+
+    public String getMspId() {
+        return mspId;
+    }
+
+    public byte[] getCreator() {
+        return creator;
+    }
+
+    private static SimulatedIdentity load(final String mspId, final String name) {
+        try (InputStream in = SimulatedIdentity.class.getResourceAsStream("/identities/" + name + ".pem")) {
+            if (in == null) {
+                throw new IllegalStateException("Missing test identity " + name);
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new SimulatedIdentity(mspId, out.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read test identity " + name, e);
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * SPDX-License-Identifier: Apache License 2.0
+ */
+
+package hu.bme;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import org.hyperledger.fabric.protos.peer.ChaincodeEventPackage.ChaincodeEvent;
+import org.hyperledger.fabric.protos.peer.ChaincodeShim.QueryResponseMetadata;
+import org.hyperledger.fabric.protos.peer.ProposalPackage.SignedProposal;
+import org.hyperledger.fabric.shim.Chaincode.Response;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyModification;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Stub of a single transaction endorsed by a {@link LedgerSimulator}. Like the peer, reads always see the last
+ * committed state and writes are only collected into the write set.
+ */
+public final class SimulatedStub implements ChaincodeStub {
+
+    private static final String MAX_UNICODE_RUNE = new String(Character.toChars(Character.MAX_CODE_POINT));
+    private static final String UNSPECIFIED_START_KEY = "\u0001";
+
+    static final class RangeRead {
+        private final String startKey;
+        private final String endKey;
+        private final List<String> keys = new ArrayList<>();
+        private final List<Long> versions = new ArrayList<>();
+        private boolean exhausted;
+
+        RangeRead(final String startKey, final String endKey) {
+            this.startKey = startKey;
+            this.endKey = endKey;
+        }
+
+        String getStartKey() {
+            return startKey;
+        }
+
+        String getEndKey() {
+            return endKey;
+        }
+
+        String getLastKey() {
+            return keys.isEmpty() ? null : keys.get(keys.size() - 1);
+        }
+
+        List<String> getKeys() {
+            return keys;
+        }
+
+        List<Long> getVersions() {
+            return versions;
+        }
+
+        boolean isExhausted() {
+            return exhausted;
+        }
+    }
+
+    private static final class SimpleKeyValue implements KeyValue {
+        private final String key;
+        private final byte[] value;
+
+        SimpleKeyValue(final String key, final byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public byte[] getValue() {
+            return value;
+        }
+
+        @Override
+        public String getStringValue() {
+            return new String(value, UTF_8);
+        }
+    }
+
+    private final class RangeIterator
+            implements QueryResultsIterator<KeyValue>, QueryResultsIteratorWithMetadata<KeyValue> {
+        private final RangeRead rangeRead;
+        private final List<Map.Entry<String, LedgerSimulator.VersionedValue>> entries;
+        private final String bookmark;
+
+        RangeIterator(final RangeRead rangeRead, final List<Map.Entry<String, LedgerSimulator.VersionedValue>> entries,
+                final String bookmark) {
+            this.rangeRead = rangeRead;
+            this.entries = entries;
+            this.bookmark = bookmark;
+        }
+
+        @Override
+        public Iterator<KeyValue> iterator() {
+            return new Iterator<KeyValue>() {
+                private int position;
+
+                @Override
+                public boolean hasNext() {
+                    final boolean hasNext = position < entries.size();
+                    if (!hasNext && bookmark.isEmpty()) {
+                        rangeRead.exhausted = true;
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public KeyValue next() {
+                    if (position >= entries.size()) {
+                        throw new NoSuchElementException();
+                    }
+                    final Map.Entry<String, LedgerSimulator.VersionedValue> entry = entries.get(position++);
+                    rangeRead.keys.add(entry.getKey());
+                    rangeRead.versions.add(entry.getValue().version);
+                    return new SimpleKeyValue(entry.getKey(), entry.getValue().value);
+                }
+            };
+        }
+
+        @Override
+        public QueryResponseMetadata getMetadata() {
+            return QueryResponseMetadata.newBuilder().setFetchedRecordsCount(entries.size()).setBookmark(bookmark)
+                    .build();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final LedgerSimulator ledger;
+    private final String txId;
+    private final Instant timestamp;
+    private final SimulatedIdentity identity;
+    private final String function;
+    private final List<String> parameters;
+    private final Map<String, Long> readSet = new LinkedHashMap<>();
+    private final Map<String, byte[]> writeSet = new LinkedHashMap<>();
+    private final Map<String, Long> privateReadSet = new LinkedHashMap<>();
+    private final Map<String, byte[]> privateWriteSet = new LinkedHashMap<>();
+    private final List<RangeRead> rangeReads = new ArrayList<>();
+    private ChaincodeEvent event;
+    private boolean paginated;
+    private boolean sealed;
+    private boolean failed;
+    private LedgerSimulator.ValidationCode validationCode;
+
+    SimulatedStub(final LedgerSimulator ledger, final String txId, final Instant timestamp,
+            final SimulatedIdentity identity, final String function, final String... parameters) {
+        this.ledger = ledger;
+        this.txId = txId;
+        this.timestamp = timestamp;
+        this.identity = identity;
+        this.function = function;
+        this.parameters = Collections.unmodifiableList(Arrays.asList(parameters));
+    }
+
+    public Map<String, Long> getReadSet() {
+        return readSet;
+    }
+
+    public Map<String, byte[]> getWriteSet() {
+        return writeSet;
+    }
+
+    public Map<String, Long> getPrivateReadSet() {
+        return privateReadSet;
+    }
+
+    public Map<String, byte[]> getPrivateWriteSet() {
+        return privateWriteSet;
+    }
+
+    public List<RangeRead> getRangeReads() {
+        return rangeReads;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public LedgerSimulator.ValidationCode getValidationCode() {
+        return validationCode;
+    }
+
+    void setValidationCode(final LedgerSimulator.ValidationCode validationCode) {
+        this.validationCode = validationCode;
+    }
+
+    void seal() {
+        if (paginated && !(writeSet.isEmpty() && privateWriteSet.isEmpty())) {
+            failed = true;
+            throw new IllegalStateException("Paginated queries are only supported in read-only transactions");
+        }
+        sealed = true;
+    }
+
+    void fail() {
+        failed = true;
+        sealed = true;
+    }
+
+    private void assertOpen() {
+        if (sealed) {
+            throw new IllegalStateException("Transaction " + txId + " has already been endorsed");
+        }
+    }
+
+    @Override
+    public byte[] getState(final String key) {
+        assertOpen();
+        final LedgerSimulator.VersionedValue value = ledger.read(key);
+        readSet.putIfAbsent(key, LedgerSimulator.versionOf(value));
+        return value == null ? new byte[0] : value.value;
+    }
+
+    @Override
+    public void putState(final String key, final byte[] value) {
+        assertOpen();
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key must not be null or empty");
+        }
+        writeSet.put(key, value == null || value.length == 0 ? null : value);
+    }
+
+    @Override
+    public void delState(final String key) {
+        assertOpen();
+        writeSet.put(key, null);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getStateByRange(final String startKey, final String endKey) {
+        CompositeKey.validateSimpleKeys(startKey, endKey);
+        final String start = startKey == null || startKey.isEmpty() ? UNSPECIFIED_START_KEY : startKey;
+        final String end = endKey == null || endKey.isEmpty() ? null : endKey;
+        return rangeIterator(start, end, 0, "");
+    }
+
+    @Override
+    public QueryResultsIteratorWithMetadata<KeyValue> getStateByRangeWithPagination(final String startKey,
+            final String endKey, final int pageSize, final String bookmark) {
+        CompositeKey.validateSimpleKeys(startKey, endKey);
+        paginated = true;
+        String start = startKey == null || startKey.isEmpty() ? UNSPECIFIED_START_KEY : startKey;
+        if (bookmark != null && !bookmark.isEmpty()) {
+            start = bookmark;
+        }
+        final String end = endKey == null || endKey.isEmpty() ? null : endKey;
+        return rangeIterator(start, end, pageSize, null);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final String compositeKey) {
+        final CompositeKey key = compositeKey.startsWith(CompositeKey.NAMESPACE)
+                ? CompositeKey.parseCompositeKey(compositeKey)
+                : new CompositeKey(compositeKey);
+        return getStateByPartialCompositeKey(key);
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final String objectType,
+            final String... attributes) {
+        return getStateByPartialCompositeKey(new CompositeKey(objectType, attributes));
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getStateByPartialCompositeKey(final CompositeKey compositeKey) {
+        final String prefix = compositeKey.toString();
+        return rangeIterator(prefix, prefix + MAX_UNICODE_RUNE, 0, "");
+    }
+
+    @Override
+    public QueryResultsIteratorWithMetadata<KeyValue> getStateByPartialCompositeKeyWithPagination(
+            final CompositeKey compositeKey, final int pageSize, final String bookmark) {
+        paginated = true;
+        final String prefix = compositeKey.toString();
+        final String start = bookmark == null || bookmark.isEmpty() ? prefix : bookmark;
+        return rangeIterator(start, prefix + MAX_UNICODE_RUNE, pageSize, null);
+    }
+
+    private RangeIterator rangeIterator(final String start, final String end, final int pageSize,
+            final String bookmark) {
+        assertOpen();
+        final RangeRead rangeRead = new RangeRead(start, end);
+        rangeReads.add(rangeRead);
+        List<Map.Entry<String, LedgerSimulator.VersionedValue>> entries = new ArrayList<>(
+                ledger.range(start, end, true).entrySet());
+        String nextBookmark = bookmark;
+        if (pageSize > 0) {
+            nextBookmark = entries.size() > pageSize ? entries.get(pageSize).getKey() : "";
+            entries = entries.subList(0, Math.min(pageSize, entries.size()));
+        }
+        return new RangeIterator(rangeRead, entries, nextBookmark == null ? "" : nextBookmark);
+    }
+
+    @Override
+    public CompositeKey createCompositeKey(final String objectType, final String... attributes) {
+        return new CompositeKey(objectType, attributes);
+    }
+
+    @Override
+    public CompositeKey splitCompositeKey(final String compositeKey) {
+        return CompositeKey.parseCompositeKey(compositeKey);
+    }
+
+    @Override
+    public byte[] getPrivateData(final String collection, final String key) {
+        assertOpen();
+        final LedgerSimulator.VersionedValue value = ledger.readPrivate(collection, key);
+        privateReadSet.putIfAbsent(LedgerSimulator.privateKey(collection, key), LedgerSimulator.versionOf(value));
+        return value == null ? new byte[0] : value.value;
+    }
+
+    @Override
+    public byte[] getPrivateDataHash(final String collection, final String key) {
+        assertOpen();
+        final LedgerSimulator.VersionedValue value = ledger.readPrivate(collection, key);
+        privateReadSet.putIfAbsent(LedgerSimulator.privateKey(collection, key), LedgerSimulator.versionOf(value));
+        return value == null ? new byte[0] : LedgerSimulator.sha256(value.value);
+    }
+
+    @Override
+    public void putPrivateData(final String collection, final String key, final byte[] value) {
+        assertOpen();
+        privateWriteSet.put(LedgerSimulator.privateKey(collection, key), value);
+    }
+
+    @Override
+    public void delPrivateData(final String collection, final String key) {
+        assertOpen();
+        privateWriteSet.put(LedgerSimulator.privateKey(collection, key), null);
+    }
+
+    @Override
+    public void setEvent(final String name, final byte[] payload) {
+        assertOpen();
+        event = ChaincodeEvent.newBuilder().setEventName(name).setTxId(txId)
+                .setPayload(payload == null ? ByteString.EMPTY : ByteString.copyFrom(payload)).build();
+    }
+
+    @Override
+    public ChaincodeEvent getEvent() {
+        return event;
+    }
+
+    @Override
+    public List<byte[]> getArgs() {
+        final List<byte[]> args = new ArrayList<>();
+        args.add(function.getBytes(UTF_8));
+        parameters.forEach(p -> args.add(p.getBytes(UTF_8)));
+        return args;
+    }
+
+    @Override
+    public List<String> getStringArgs() {
+        return getArgs().stream().map(a -> new String(a, UTF_8)).collect(Collectors.toList());
+    }
+
+    @Override
+    public String getFunction() {
+        return function;
+    }
+
+    @Override
+    public List<String> getParameters() {
+        return parameters;
+    }
+
+    @Override
+    public String getTxId() {
+        return txId;
+    }
+
+    @Override
+    public String getChannelId() {
+        return "simulated";
+    }
+
+    @Override
+    public Instant getTxTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public byte[] getCreator() {
+        return identity.getCreator();
+    }
+
+    @Override
+    public String getMspId() {
+        return identity.getMspId();
+    }
+
+    @Override
+    public Map<String, byte[]> getTransient() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public byte[] getBinding() {
+        return new byte[0];
+    }
+
+    @Override
+    public SignedProposal getSignedProposal() {
+        return SignedProposal.getDefaultInstance();
+    }
+
+    @Override
+    public Response invokeChaincode(final String chaincodeName, final List<byte[]> args, final String channel) {
+        throw new UnsupportedOperationException("Chaincode to chaincode calls are not simulated");
+    }
+
+    @Override
+    public byte[] getStateValidationParameter(final String key) {
+        return new byte[0];
+    }
+
+    @Override
+    public void setStateValidationParameter(final String key, final byte[] value) {
+        throw new UnsupportedOperationException("Key level endorsement is not simulated");
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getQueryResult(final String query) {
+        throw new UnsupportedOperationException("Rich queries are not supported by the LevelDB state database");
+    }
+
+    @Override
+    public QueryResultsIteratorWithMetadata<KeyValue> getQueryResultWithPagination(final String query,
+            final int pageSize, final String bookmark) {
+        throw new UnsupportedOperationException("Rich queries are not supported by the LevelDB state database");
+    }
+
+    @Override
+    public QueryResultsIterator<KeyModification> getHistoryForKey(final String key) {
+        throw new UnsupportedOperationException("History queries are not simulated");
+    }
+
+    @Override
+    public byte[] getPrivateDataValidationParameter(final String collection, final String key) {
+        return new byte[0];
+    }
+
+    @Override
+    public void setPrivateDataValidationParameter(final String collection, final String key, final byte[] value) {
+        throw new UnsupportedOperationException("Key level endorsement is not simulated");
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataByRange(final String collection, final String startKey,
+            final String endKey) {
+        throw new UnsupportedOperationException("Private data range queries are not simulated");
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection,
+            final String compositeKey) {
+        throw new UnsupportedOperationException("Private data range queries are not simulated");
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection,
+            final CompositeKey compositeKey) {
+        throw new UnsupportedOperationException("Private data range queries are not simulated");
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataByPartialCompositeKey(final String collection,
+            final String objectType, final String... attributes) {
+        throw new UnsupportedOperationException("Private data range queries are not simulated");
+    }
+
+    @Override
+    public QueryResultsIterator<KeyValue> getPrivateDataQueryResult(final String collection, final String query) {
+        throw new UnsupportedOperationException("Rich queries are not supported by the LevelDB state database");
+    }
+}